@@ -0,0 +1,291 @@
+package fun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal assembler for JVM class files, sufficient for the
+ * code generated by SVMCompiler: one class with static methods,
+ * int locals and a constant pool of classes, strings and method
+ * references. Every branch target gets the same full stack map
+ * frame, so the operand stack must be empty at each label.
+ */
+public class ClassAssembler {
+
+    // JVM opcodes used by the compiler.
+    public static final int
+            ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2e, ISTORE = 0x36, IASTORE = 0x4f,
+            DUP = 0x59, DUP2 = 0x5c, SWAP = 0x5f,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c,
+            ISHR = 0x7a, IUSHR = 0x7c, IAND = 0x7e, IOR = 0x80, IXOR = 0x82, IINC = 0x84,
+            IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+            IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1,
+            IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4,
+            GOTO = 0xa7, TABLESWITCH = 0xaa, LOOKUPSWITCH = 0xab, IRETURN = 0xac,
+            INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8;
+
+    private static final int
+            CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7,
+            CONSTANT_METHODREF = 10, CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(this.pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private int methodCount = 0;
+
+    // Code of the method being assembled.
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+    private final List<int[]> fixups = new ArrayList<>();   // {instruction, operand, label, wide}
+    private int[] frameLocals;
+
+    public ClassAssembler(String name) {
+        // Start assembling the class with the given internal name.
+        this.name = name;
+    }
+
+    // CONSTANT POOL
+    private int constant(String key, int tag, Object... parts) {
+        Integer index = this.poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            this.poolOut.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String s) this.poolOut.writeUTF(s);
+                else if (tag == CONSTANT_INTEGER) this.poolOut.writeInt((Integer) part);
+                else this.poolOut.writeShort((Integer) part);
+            }
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+        this.poolIndex.put(key, this.poolCount);
+        return this.poolCount++;
+    }
+
+    public int utf8(String s) {
+        return this.constant("U" + s, CONSTANT_UTF8, s);
+    }
+
+    public int classRef(String className) {
+        return this.constant("C" + className, CONSTANT_CLASS, this.utf8(className));
+    }
+
+    public int integer(int value) {
+        return this.constant("I" + value, CONSTANT_INTEGER, value);
+    }
+
+    public int methodRef(String owner, String method, String descriptor) {
+        int nameAndType = this.constant("N" + method + descriptor, CONSTANT_NAME_AND_TYPE,
+                this.utf8(method), this.utf8(descriptor));
+        return this.constant("M" + owner + "." + method + descriptor, CONSTANT_METHODREF,
+                this.classRef(owner), nameAndType);
+    }
+
+    // CODE EMISSION
+    private void put(int b) {
+        if (this.length == this.code.length) this.code = Arrays.copyOf(this.code, 2 * this.length);
+        this.code[this.length++] = (byte) b;
+    }
+
+    public int position() {
+        return this.length;
+    }
+
+    public void op(int opcode) {
+        this.put(opcode);
+    }
+
+    public void op1(int opcode, int operand) {
+        this.put(opcode);
+        this.put(operand);
+    }
+
+    public void op2(int opcode, int operand) {
+        this.put(opcode);
+        this.put(operand >> 8);
+        this.put(operand);
+    }
+
+    public void iinc(int local, int delta) {
+        this.put(IINC);
+        this.put(local);
+        this.put(delta);
+    }
+
+    public void pushInt(int value) {
+        // Push an int constant with the shortest instruction.
+        if (value >= -1 && value <= 5) this.op(ICONST_0 + value);
+        else if (value >= -128 && value < 128) this.op1(BIPUSH, value);
+        else if (value >= -32768 && value < 32768) this.op2(SIPUSH, value);
+        else this.op2(LDC_W, this.integer(value));
+    }
+
+    public int newLabel() {
+        if (this.labelCount == this.labels.length) this.labels = Arrays.copyOf(this.labels, 2 * this.labelCount);
+        this.labels[this.labelCount] = -1;
+        return this.labelCount++;
+    }
+
+    public void bind(int label) {
+        // Bind a label to the current position.
+        this.labels[label] = this.length;
+    }
+
+    public void branch(int opcode, int label) {
+        // Emit a branch (with a 16-bit offset) to a label.
+        this.fixups.add(new int[]{this.length, this.length + 1, label, 0});
+        this.op2(opcode, 0);
+    }
+
+    public void switchTable(int low, int[] targets, int defaultLabel) {
+        // Emit a tableswitch over keys low .. low+targets.length-1.
+        int at = this.length;
+        this.put(TABLESWITCH);
+        while (this.length % 4 != 0) this.put(0);
+        this.switchTarget(at, defaultLabel);
+        this.putInt(low);
+        this.putInt(low + targets.length - 1);
+        for (int target : targets) this.switchTarget(at, target);
+    }
+
+    public void switchLookup(int[] keys, int[] targets, int defaultLabel) {
+        // Emit a lookupswitch; keys must be sorted.
+        int at = this.length;
+        this.put(LOOKUPSWITCH);
+        while (this.length % 4 != 0) this.put(0);
+        this.switchTarget(at, defaultLabel);
+        this.putInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            this.putInt(keys[i]);
+            this.switchTarget(at, targets[i]);
+        }
+    }
+
+    private void switchTarget(int at, int label) {
+        this.fixups.add(new int[]{at, this.length, label, 1});
+        this.putInt(0);
+    }
+
+    private void putInt(int value) {
+        this.put(value >> 24);
+        this.put(value >> 16);
+        this.put(value >> 8);
+        this.put(value);
+    }
+
+    public void setFrameLocals(String... locals) {
+        // Declare the locals of the stack map frame used at
+        // every label: "I" for an int, or a class name.
+        int[] types = new int[locals.length];
+        for (int i = 0; i < locals.length; i++)
+            types[i] = (locals[i].equals("I") ? -1 : this.classRef(locals[i]));
+        this.frameLocals = types;
+    }
+
+    public void endMethod(String method, String descriptor, int maxStack, int maxLocals) {
+        // Add the assembled code as a public static method.
+        for (int[] fixup : this.fixups) {
+            int target = this.labels[fixup[2]];
+            if (target < 0) throw new IllegalStateException("unbound label");
+            int offset = target - fixup[0];
+            if (fixup[3] == 0) {
+                if (offset != (short) offset) throw new IllegalStateException("branch too far");
+                this.code[fixup[1]] = (byte) (offset >> 8);
+                this.code[fixup[1] + 1] = (byte) offset;
+            } else {
+                for (int b = 0; b < 4; b++) this.code[fixup[1] + b] = (byte) (offset >> (24 - 8 * b));
+            }
+        }
+        int[] targets = Arrays.stream(this.labels, 0, this.labelCount).filter(t -> t >= 0).sorted().distinct().toArray();
+
+        try {
+            DataOutputStream out = new DataOutputStream(this.methods);
+            out.writeShort(0x0009);     // public static
+            out.writeShort(this.utf8(method));
+            out.writeShort(this.utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(this.utf8("Code"));
+
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            DataOutputStream framesOut = new DataOutputStream(frames);
+            int previous = -1;
+            for (int target : targets) {
+                framesOut.writeByte(255);   // full_frame
+                framesOut.writeShort(target - previous - 1);
+                framesOut.writeShort(this.frameLocals.length);
+                for (int type : this.frameLocals) {
+                    if (type < 0) {
+                        framesOut.writeByte(1);     // Integer
+                    } else {
+                        framesOut.writeByte(7);     // Object
+                        framesOut.writeShort(type);
+                    }
+                }
+                framesOut.writeShort(0);
+                previous = target;
+            }
+            int mapLength = (targets.length > 0 ? 8 + frames.size() : 0);
+
+            out.writeInt(12 + this.length + mapLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(this.length);
+            out.write(this.code, 0, this.length);
+            out.writeShort(0);      // no exception table
+            if (targets.length > 0) {
+                out.writeShort(1);
+                out.writeShort(this.utf8("StackMapTable"));
+                out.writeInt(2 + frames.size());
+                out.writeShort(targets.length);
+                frames.writeTo(out);
+            } else {
+                out.writeShort(0);
+            }
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+        this.methodCount++;
+        this.length = 0;
+        this.labelCount = 0;
+        this.fixups.clear();
+    }
+
+    public byte[] toByteArray() {
+        // Return the class file.
+        int thisClass = this.classRef(this.name);
+        int superClass = this.classRef("java/lang/Object");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);     // Java 8 class file
+            out.writeShort(this.poolCount);
+            this.pool.writeTo(out);
+            out.writeShort(0x0030);     // final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);      // no interfaces
+            out.writeShort(0);      // no fields
+            out.writeShort(this.methodCount);
+            this.methods.writeTo(out);
+            out.writeShort(0);      // no attributes
+            return bytes.toByteArray();
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+}
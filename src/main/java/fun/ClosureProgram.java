@@ -0,0 +1,97 @@
+package fun;
+
+/**
+ * A Fun program compiled to a tree of closures by
+ * FunClosureCompiler. Each expression and command is a
+ * node with its operands and variable addresses bound in, which
+ * the JVM can inline through when it compiles the nodes of a hot
+ * procedure together. Every node works on the array of globals
+ * and the frame of the procedure activation, whose words have
+ * the same addresses as in an SVM frame.
+ */
+public class ClosureProgram {
+
+    public interface Expr {
+        int eval(int[] g, int[] l);
+    }
+
+    public interface Cond {
+        boolean test(int[] g, int[] l);
+    }
+
+    public interface Com {
+        void exec(int[] g, int[] l);
+    }
+
+    public static final class Procedure {
+
+        // A procedure's body is bound once the procedure has been
+        // compiled, after any calls of it within the body.
+        final String name;
+        int frameSize = 3;      // link data (unused) and one argument
+        Com body;
+        Expr result;            // null for a proc
+
+        Procedure(String name) {
+            this.name = name;
+        }
+
+        int call(int[] g, int arg) {
+            // Run an activation of this procedure with the given
+            // argument. Return its result, or 0 for a proc.
+            int[] l = new int[this.frameSize];
+            l[2] = arg;
+            this.body.exec(g, l);
+            return (this.result != null ? this.result.eval(g, l) : 0);
+        }
+
+    }
+
+    // The nodes recurse on the Java stack, so programs run in a
+    // thread with a stack large enough for deep Fun recursion.
+    private static final long STACK_SIZE = 1L << 30;
+
+    private final int globals;
+    private final Com init;
+    private final Procedure main;
+    private final FunIO[] io;       // IO channels of the nodes of read and write
+
+    ClosureProgram(int globals, Com init, Procedure main, FunIO[] io) {
+        this.globals = globals;
+        this.init = init;
+        this.main = main;
+        this.io = io;
+    }
+
+    public void run() throws InterruptedException {
+        // Run the program, reading and writing on the console.
+        this.run(FunIO.console());
+    }
+
+    public synchronized void run(FunIO io) throws InterruptedException {
+        // Initialise the globals, then call main, with the given
+        // IO channels, flushed when the program stops. The nodes
+        // share their IO channels, so runs take turns.
+        this.io[0] = io;
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                int[] g = new int[this.globals];
+                this.init.exec(g, new int[0]);
+                this.main.call(g, 0);
+            } catch (RuntimeException x) {
+                failure[0] = x;
+            } catch (StackOverflowError x) {
+                failure[0] = new IllegalStateException("Fun stack overflow", x);
+            }
+        }, "fun-closures", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } finally {
+            io.flush();
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+}
@@ -1,7 +1,5 @@
 package fun;
 
-import ast.FunLexer;
-import ast.FunParser;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
@@ -37,28 +35,25 @@ public class FunCheck {
 
     private static void check(String filename) throws Exception {
         // Contextually analyse a Fun program
-        FunLexer lexer = new FunLexer(CharStreams.fromFileName(filename));
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        ParseTree tree = syntacticAnalyse(tokens);
-        contextualAnalyse(tree, tokens);
+        FunFrontEnd.Parse parse = syntacticAnalyse(filename);
+        contextualAnalyse(parse.tree, parse.tokens);
     }
 
-    private static ParseTree syntacticAnalyse(CommonTokenStream tokens) throws Exception {
+    private static FunFrontEnd.Parse syntacticAnalyse(String filename) throws Exception {
         // Perform syntactic analysis of a Fun source program.
         // Print any error messages.
-        // Return a syntax tree representation of the Fun program.
+        // Return a syntax tree representation of the Fun program,
+        // with its tokens.
         out.println();
         out.println("Syntactic analysis ...");
 
-        FunParser parser = new FunParser(tokens);
-        ParseTree tree = parser.program();
+        FunFrontEnd.Parse parse = FunFrontEnd.parse(CharStreams.fromFileName(filename));
 
-        int errors = parser.getNumberOfSyntaxErrors();
-        out.println(errors + " syntactic errors");
+        out.println(parse.errors + " syntactic errors");
 
-        if (errors > 0) throw new FunException();
+        if (parse.errors > 0) throw new FunException();
 
-        return tree;
+        return parse;
     }
 
     private static void contextualAnalyse(ParseTree tree, CommonTokenStream tokens) throws Exception {
@@ -12,10 +12,9 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.AbstractParseTreeVisitor;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * A visitor for contextual analysis of Fun.
@@ -36,6 +35,7 @@ public class FunCheckerVisitor extends AbstractParseTreeVisitor<Type> implements
     private final SymbolTable<Type> typeTable = new SymbolTable<>();
     private int errorCount = 0;
     private final List<String> map = new ArrayList<>();
+    private final ParseTreeProperty<SwitchGuards> switchGuards = new ParseTreeProperty<>();
 
 
     public FunCheckerVisitor(CommonTokenStream tokens) {
@@ -65,6 +65,11 @@ public class FunCheckerVisitor extends AbstractParseTreeVisitor<Type> implements
         return this.errorCount;
     }
 
+    public ParseTreeProperty<SwitchGuards> getSwitchGuards() {
+        // Return the case guards of every switch command checked.
+        return this.switchGuards;
+    }
+
     private void predefine() {
         // Add predefined procedures to the type table.
         this.typeTable.put("read", new Mapping(Type.VOID, Type.INT));
@@ -356,53 +361,54 @@ public class FunCheckerVisitor extends AbstractParseTreeVisitor<Type> implements
     @Override
     public Type visitSwitch(FunParser.SwitchContext ctx) {
         Type t = super.visit(ctx.expr());
-        Set<Integer> masterSet = new HashSet<>();
-        for (FunParser.Sw_caseContext sw_case : ctx.sw_case()) {
+        SwitchGuards guards = new SwitchGuards(ctx.sw_case().size());
+        for (int i = 0; i < guards.size(); i++) {
+            FunParser.Sw_caseContext sw_case = ctx.sw_case(i);
             Type type = super.visit(sw_case);
             this.checkType(t, type, ctx);
-
-            int currentLength = masterSet.size();
-            Set<Integer> toAddSet = this.checkSwitchOverlap(sw_case);
-            int toAddLength = toAddSet.size();
-            masterSet.addAll(toAddSet);
-
-            boolean hasOverlapped = (currentLength + toAddLength) != masterSet.size();
-            if (hasOverlapped)
-                this.reportError(String.format("Switch case guard (%s) has already been used!", toAddSet), sw_case);
+            this.setSwitchGuard(sw_case, guards, i);
+        }
+        // Overlaps are found on the guards' intervals, so the cost
+        // does not depend on the width of any range.
+        boolean[] overlapping = guards.overlapping();
+        for (int i = 0; i < guards.size(); i++) {
+            if (overlapping[i])
+                this.reportError(String.format("Switch case guard (%s) has already been used!", guards.toString(i)), ctx.sw_case(i));
         }
         super.visit(ctx.sw_default());
+        this.switchGuards.put(ctx, guards);
         return null;
     }
 
 
-    private Set<Integer> checkSwitchOverlap(FunParser.Sw_caseContext sw_case) {
+    private void setSwitchGuard(FunParser.Sw_caseContext sw_case, SwitchGuards guards, int i) {
+        // Record the values matched by case i as an interval;
+        // a case with no valid guard matches nothing.
+        guards.low[i] = 1;
+        guards.high[i] = 0;
         for (ParseTree child : sw_case.children) {
             if (child instanceof FunParser.RangeContext rangeContext) {
                 // Type has already been checked and verified to be INT
-                String n1 = ((FunParser.NumContext) rangeContext.n1).NUM().toString();
-                String n2 = ((FunParser.NumContext) rangeContext.n2).NUM().toString();
-                int i1 = Integer.parseInt(n1);
-                int i2 = Integer.parseInt(n2);
-                // Create set of ints from i1-i2
-                return IntStream.rangeClosed(i1, i2)
-                        .boxed().collect(Collectors.toSet());
+                // A literal out of range has been reported and
+                // leaves the case matching nothing.
+                int n1 = literalValue(((FunParser.NumContext) rangeContext.n1).NUM().toString());
+                int n2 = literalValue(((FunParser.NumContext) rangeContext.n2).NUM().toString());
+                if (n1 >= 0 && n2 >= 0) {
+                    guards.low[i] = n1;
+                    guards.high[i] = n2;
+                }
+                return;
             } else if (child instanceof FunParser.NumContext numContext) {
-                String n = numContext.NUM().toString();
-                // Return the single number
-                return Collections.singleton(Integer.parseInt(n));
-            } else if (child instanceof FunParser.TrueContext trueContext) {
-                String s = trueContext.TRUE().toString();
-                boolean t = Boolean.parseBoolean(s);
+                int n = literalValue(numContext.NUM().toString());
+                // Record the single number
+                if (n >= 0) guards.low[i] = guards.high[i] = n;
+                return;
+            } else if (child instanceof FunParser.TrueContext || child instanceof FunParser.FalseContext) {
                 // Convert bool into int
-                return Collections.singleton(t ? 1 : 0);
-            } else if (child instanceof FunParser.FalseContext falseContext) {
-                String s = falseContext.FALSE().toString();
-                boolean t = Boolean.parseBoolean(s);
-                // Convert bool into int
-                return Collections.singleton(t ? 1 : 0);
+                guards.low[i] = guards.high[i] = (child instanceof FunParser.TrueContext ? 1 : 0);
+                return;
             }
         }
-        return Collections.emptySet();
     }
 
     @Override
@@ -520,9 +526,23 @@ public class FunCheckerVisitor extends AbstractParseTreeVisitor<Type> implements
      */
     @Override
     public Type visitNum(FunParser.NumContext ctx) {
+        String n = ctx.NUM().getText();
+        if (literalValue(n) < 0)
+            this.reportError("literal " + n + " is too large, should be at most " + Short.MAX_VALUE, ctx);
         return Type.INT;
     }
 
+    static int literalValue(String n) {
+        // Return the value of a NUM literal, or -1 if it does not
+        // fit in the 16-bit operand of an SVM LOADC.
+        try {
+            int value = Integer.parseInt(n);
+            return (value <= Short.MAX_VALUE ? value : -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Visit a parse tree produced by the {@code id}
      * labeled alternative in {@link FunParser#prim_expr}.
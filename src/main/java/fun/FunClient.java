@@ -0,0 +1,114 @@
+package fun;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The client of a FunDaemon: sends it one request, passing on
+ * standard input as the input of a run, and prints the output.
+ * Its command line is an optional -socket=PATH or -port=N, the
+ * command, then the arguments of the command, as for FunRun.
+ * The exit code is 0 if the request succeeded, else 1.
+ */
+public class FunClient {
+
+    private static final PrintStream out = System.out;
+
+    public static void main(String[] args) {
+        int first = 0;
+        String address = null;
+        if (args.length > 0 && (args[0].startsWith("-socket=") || args[0].startsWith("-port=")))
+            address = args[first++];
+        if (first == args.length) {
+            out.println("Usage: FunClient [-socket=PATH | -port=N] run|compile|stats|stop [arguments]");
+            System.exit(1);
+        }
+        try {
+            System.exit(request(FunDaemon.address(address), args[first],
+                    Arrays.copyOfRange(args, first + 1, args.length)) ? 0 : 1);
+        } catch (FunException x) {
+            out.println("Usage: FunClient [-socket=PATH | -port=N] run|compile|stats|stop [arguments]");
+        } catch (IOException x) {
+            out.println("Request failed: " + x);
+        }
+        System.exit(1);
+    }
+
+    private static boolean request(SocketAddress address, String command, String[] args) throws IOException {
+        // Send the request, then print each line of the response
+        // but the last, which tells whether it succeeded.
+        try (SocketChannel channel = (address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open())) {
+            channel.connect(address);
+            OutputStream request = Channels.newOutputStream(channel);
+            StringBuilder header = new StringBuilder(command).append('\n');
+            for (String arg : args) {
+                // The daemon resolves file names in its own directory.
+                if (!arg.startsWith("-")) arg = Path.of(arg).toAbsolutePath().toString();
+                header.append(arg).append('\n');
+            }
+            header.append('\n');
+            request.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+            if (command.equals("run")) {
+                // Pass on the input as it arrives, so that the
+                // program may prompt for it. The streams of
+                // Channels would share a lock, so that writing
+                // the input waits while reading the response.
+                Thread input = new Thread(() -> {
+                    try {
+                        byte[] bytes = new byte[8192];
+                        for (int n = System.in.read(bytes); n > 0; n = System.in.read(bytes)) {
+                            ByteBuffer buf = ByteBuffer.wrap(bytes, 0, n);
+                            while (buf.hasRemaining()) channel.write(buf);
+                        }
+                        channel.shutdownOutput();
+                    } catch (IOException x) {
+                        // the daemon closed the connection
+                    }
+                });
+                input.setDaemon(true);
+                input.start();
+            }
+
+            InputStream response = new BufferedInputStream(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return (this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return channel.read(ByteBuffer.wrap(b, off, len));
+                }
+            });
+            String last = null;
+            for (String line = FunDaemon.readLine(response); line != null; line = FunDaemon.readLine(response)) {
+                if (last != null) out.println(last);
+                last = line;
+            }
+            if (last == null) throw new IOException("no response");
+            String[] status = last.split(" ", 3);
+            boolean stats = Arrays.asList(args).contains("-stats");
+            if (stats && status.length > 1)
+                System.err.printf("Served in %.3f ms\n", Long.parseLong(status[1]) / 1e3);
+            if (status[0].equals("ok")) return true;
+            out.println("Request failed: " + (status.length > 2 ? status[2] : last));
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+package fun;
+
+import fun.ClosureProgram.Com;
+import fun.ClosureProgram.Cond;
+import fun.ClosureProgram.Expr;
+import fun.ClosureProgram.Procedure;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the FunIR form of a checked and optionally optimised
+ * Fun program to a tree of closures, for direct execution as a
+ * ClosureProgram. Variables are at the offsets of their slots,
+ * bound into the nodes that use them, and the nodes for common
+ * shapes of expression are specialised when they are built.
+ */
+public class FunClosureCompiler {
+
+    private final Map<String, Integer> specialised = new LinkedHashMap<>();
+    private final FunIO[] io = new FunIO[1];    // set by each run
+    private Procedure[] procedures;
+    private ClosureProgram program;
+
+    public ClosureProgram getProgram() {
+        return this.program;
+    }
+
+    public String showSpecialisations() {
+        // Return a report of the specialised nodes built.
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, Integer> e : this.specialised.entrySet())
+            s.append(String.format("%8d  %s\n", e.getValue(), e.getKey()));
+        return s.toString();
+    }
+
+    private <T> T specialise(String shape, T node) {
+        // Count a node specialised to the given shape.
+        this.specialised.merge(shape, 1, Integer::sum);
+        return node;
+    }
+
+    private static Integer constantOf(FunIR.Expr e) {
+        // Return the value of e if it is constant, or null.
+        return (e instanceof FunIR.Const c ? c.value : null);
+    }
+
+    private static int localOf(FunIR.Expr e) {
+        // Return the offset of the local variable that e reads,
+        // or -1 if it is not a local variable. Offsets allow 2
+        // words for link data.
+        return (e instanceof FunIR.Var var && !var.global ? 2 + var.slot : -1);
+    }
+
+    private static int constant(FunIR.Expr bound) {
+        // Return the value of the bound of a range, a Const or
+        // a sum or difference of Consts.
+        if (bound instanceof FunIR.Const c) return c.value;
+        FunIR.Binary b = (FunIR.Binary) bound;
+        int left = constant(b.left), right = constant(b.right);
+        return (b.op == FunIR.ADD ? left + right : left - right);
+    }
+
+    public void compile(FunIR.Program program) {
+        this.procedures = new Procedure[program.procs.length];
+        List<Com> init = new ArrayList<>();
+        for (int i = 0; i < program.globals.length; i++) {
+            Expr e = this.expr(program.globals[i]);
+            int d = i;
+            init.add((g, l) -> g[d] = e.eval(g, l));
+        }
+        for (int i = 0; i < program.procs.length; i++) this.procedure(i, program.procs[i]);
+        this.program = new ClosureProgram(program.globals.length, sequence(init), this.procedures[program.main],
+                this.io);
+    }
+
+    private void procedure(int index, FunIR.Procedure decl) {
+        // Declare a procedure, so that its body may call it.
+        Procedure proc = new Procedure(decl.name);
+        this.procedures[index] = proc;
+        // ... allows 2 words for link data. The caller leaves the
+        // argument at offset 2.
+        int d = (decl.hasParam ? 3 : 2);
+        List<Com> coms = new ArrayList<>();
+        for (FunIR.Expr init : decl.locals) {
+            Expr e = this.expr(init);
+            int local = d++;
+            coms.add((g, l) -> l[local] = e.eval(g, l));
+        }
+        coms.add(this.seq(decl.body));
+        proc.body = sequence(coms);
+        if (decl.result != null) proc.result = this.expr(decl.result);
+        proc.frameSize = Math.max(proc.frameSize, d);
+    }
+
+    private static Com sequence(List<Com> coms) {
+        // Return a node running the given nodes in order.
+        return switch (coms.size()) {
+            case 0 -> (g, l) -> {
+            };
+            case 1 -> coms.get(0);
+            case 2 -> {
+                Com c1 = coms.get(0), c2 = coms.get(1);
+                yield (g, l) -> {
+                    c1.exec(g, l);
+                    c2.exec(g, l);
+                };
+            }
+            default -> {
+                Com[] cs = coms.toArray(new Com[0]);
+                yield (g, l) -> {
+                    for (Com c : cs) c.exec(g, l);
+                };
+            }
+        };
+    }
+
+    // COMMANDS
+
+    private Com seq(FunIR.Com[] coms) {
+        List<Com> nodes = new ArrayList<>(coms.length);
+        for (FunIR.Com c : coms) nodes.add(this.com(c));
+        return sequence(nodes);
+    }
+
+    private Com com(FunIR.Com c) {
+        if (c instanceof FunIR.Assign assign) return this.assign(assign);
+        if (c instanceof FunIR.ProcCall call) {
+            if (call.proc == FunIR.WRITE) {
+                Expr e = this.expr(call.arg);
+                FunIO[] io = this.io;
+                return (g, l) -> io[0].write(e.eval(g, l));
+            }
+            return this.call(call.proc, call.arg)::eval;
+        }
+        if (c instanceof FunIR.If ifCom) return this.ifCom(ifCom);
+        if (c instanceof FunIR.Loop loop) return this.loop(loop);
+        return this.switchCom((FunIR.Switch) c);
+    }
+
+    private Com assign(FunIR.Assign assign) {
+        int d = assign.target.slot;
+        if (assign.target.global) {
+            Expr e = this.expr(assign.value);
+            return (g, l) -> g[d] = e.eval(g, l);
+        }
+        int local = localOf(assign.target);
+        // Assigning a local plus a constant to itself is an
+        // increment in place.
+        if (assign.value instanceof FunIR.Binary b && (b.op == FunIR.ADD || b.op == FunIR.SUB)
+                && localOf(b.left) == local) {
+            Integer k = constantOf(b.right);
+            if (k != null) {
+                int n = (b.op == FunIR.ADD ? k : -k);
+                return this.specialise("increment local", (Com) (g, l) -> l[local] += n);
+            }
+        }
+        Expr e = this.expr(assign.value);
+        return (g, l) -> l[local] = e.eval(g, l);
+    }
+
+    private Com ifCom(FunIR.If ifCom) {
+        Cond c = this.cond(ifCom.cond);
+        Com c1 = this.seq(ifCom.thenCom);
+        if (ifCom.elseCom == null) {
+            return (g, l) -> {
+                if (c.test(g, l)) c1.exec(g, l);
+            };
+        }
+        Com c2 = this.seq(ifCom.elseCom);
+        return (g, l) -> {
+            if (c.test(g, l)) c1.exec(g, l);
+            else c2.exec(g, l);
+        };
+    }
+
+    private Com loop(FunIR.Loop loop) {
+        // Return a node for a loop that exits as soon as its
+        // condition is true, testing it first.
+        if (loop.exit == null) {
+            Com b = this.seq(loop.body);
+            return (g, l) -> {
+                while (true) b.exec(g, l);
+            };
+        }
+        Cond c = this.cond(loop.exit);
+        Com b = this.seq(loop.body);
+        return (g, l) -> {
+            while (!c.test(g, l)) b.exec(g, l);
+        };
+    }
+
+    private Com switchCom(FunIR.Switch sw) {
+        // Dense guards index a table of case bodies; otherwise
+        // the guards are tested in order.
+        Expr e = this.expr(sw.subject);
+        int n = sw.cases.length;
+        int[] lo = new int[n];
+        int[] hi = new int[n];
+        Com[] bodies = new Com[n];
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            if (sw.single[i] != null) {
+                lo[i] = hi[i] = constant(sw.single[i]);
+            } else {
+                lo[i] = constant(sw.below[i]) + 1;
+                hi[i] = constant(sw.above[i]) - 1;
+            }
+            bodies[i] = this.seq(sw.cases[i]);
+            min = Math.min(min, lo[i]);
+            max = Math.max(max, hi[i]);
+        }
+        Com other = this.seq(sw.defaultCom);
+        if (n > 0 && (long) max - min < 256) {
+            Com[] table = new Com[max - min + 1];
+            for (int i = n - 1; i >= 0; i--)
+                for (int v = lo[i]; v <= hi[i]; v++) table[v - min] = bodies[i];
+            for (int v = 0; v < table.length; v++) if (table[v] == null) table[v] = other;
+            int base = min;
+            return this.specialise("switch table", (Com) (g, l) -> {
+                int v = e.eval(g, l) - base;
+                if (v >= 0 && v < table.length) table[v].exec(g, l);
+                else other.exec(g, l);
+            });
+        }
+        return (g, l) -> {
+            int v = e.eval(g, l);
+            for (int i = 0; i < lo.length; i++) {
+                if (lo[i] <= v && v <= hi[i]) {
+                    bodies[i].exec(g, l);
+                    return;
+                }
+            }
+            other.exec(g, l);
+        };
+    }
+
+    // EXPRESSIONS
+
+    private Expr expr(FunIR.Expr e) {
+        if (e instanceof FunIR.Const c) {
+            int k = c.value;
+            return (g, l) -> k;
+        }
+        if (e instanceof FunIR.Var var) {
+            int d = var.slot;
+            if (var.global) return (g, l) -> g[d];
+            int local = localOf(var);
+            return (g, l) -> l[local];
+        }
+        if (e instanceof FunIR.Binary b) {
+            if (!b.isComparison()) return this.arithmetic(b);
+            Cond c = this.compare(b);
+            return (g, l) -> c.test(g, l) ? 1 : 0;
+        }
+        if (e instanceof FunIR.Not not) {
+            Cond c = this.cond(not.operand);
+            return (g, l) -> c.test(g, l) ? 0 : 1;
+        }
+        FunIR.Call call = (FunIR.Call) e;
+        if (call.proc == FunIR.READ) {
+            FunIO[] io = this.io;
+            return (g, l) -> io[0].read();
+        }
+        return this.call(call.proc, call.arg);
+    }
+
+    private Expr call(int index, FunIR.Expr arg) {
+        // Return a node calling the procedure index, yielding its
+        // result if any.
+        Procedure proc = this.procedures[index];
+        if (arg == null) return (g, l) -> proc.call(g, 0);
+        int a = localOf(arg);
+        if (a >= 0) return this.specialise("call with local", (Expr) (g, l) -> proc.call(g, l[a]));
+        Expr e = this.expr(arg);
+        return (g, l) -> proc.call(g, e.eval(g, l));
+    }
+
+    private Cond cond(FunIR.Expr e) {
+        // Return a node testing the condition e, without
+        // materialising a comparison as 0 or 1.
+        Integer k = constantOf(e);
+        if (k != null) {
+            boolean b = (k != 0);
+            return (g, l) -> b;
+        }
+        if (e instanceof FunIR.Not not) {
+            Cond a = this.cond(not.operand);
+            return (g, l) -> !a.test(g, l);
+        }
+        if (e instanceof FunIR.Binary b && b.isComparison()) return this.compare(b);
+        Expr x = this.expr(e);
+        return (g, l) -> x.eval(g, l) != 0;
+    }
+
+    private Cond compare(FunIR.Binary b) {
+        // Return a node for the comparison b, specialised when
+        // its left operand is a local and its right operand a
+        // local or constant.
+        int op = b.op;
+        int x = localOf(b.left);
+        int y = localOf(b.right);
+        Integer k = constantOf(b.right);
+        if (x >= 0 && k != null) {
+            int n = k;
+            return this.specialise("local compare constant", switch (op) {
+                case FunIR.EQ -> (Cond) (g, l) -> l[x] == n;
+                case FunIR.LT -> (Cond) (g, l) -> l[x] < n;
+                default -> (Cond) (g, l) -> l[x] > n;
+            });
+        }
+        if (x >= 0 && y >= 0) {
+            return this.specialise("local compare local", switch (op) {
+                case FunIR.EQ -> (Cond) (g, l) -> l[x] == l[y];
+                case FunIR.LT -> (Cond) (g, l) -> l[x] < l[y];
+                default -> (Cond) (g, l) -> l[x] > l[y];
+            });
+        }
+        Expr e1 = this.expr(b.left);
+        if (k != null) {
+            int n = k;
+            return this.specialise("compare constant", switch (op) {
+                case FunIR.EQ -> (Cond) (g, l) -> e1.eval(g, l) == n;
+                case FunIR.LT -> (Cond) (g, l) -> e1.eval(g, l) < n;
+                default -> (Cond) (g, l) -> e1.eval(g, l) > n;
+            });
+        }
+        Expr e2 = this.expr(b.right);
+        return switch (op) {
+            case FunIR.EQ -> (g, l) -> e1.eval(g, l) == e2.eval(g, l);
+            case FunIR.LT -> (g, l) -> e1.eval(g, l) < e2.eval(g, l);
+            default -> (g, l) -> e1.eval(g, l) > e2.eval(g, l);
+        };
+    }
+
+    private Expr arithmetic(FunIR.Binary b) {
+        // Return a node for the arithmetic b, specialised when
+        // its operands are locals or its right operand constant.
+        int op = b.op;
+        int x = localOf(b.left);
+        int y = localOf(b.right);
+        Integer k = constantOf(b.right);
+        if (k != null && (op == FunIR.ADD || op == FunIR.SUB)) {
+            int n = (op == FunIR.ADD ? k : -k);
+            if (x >= 0) return this.specialise("local add constant", (Expr) (g, l) -> l[x] + n);
+            Expr e1 = this.expr(b.left);
+            return this.specialise("add constant", (Expr) (g, l) -> e1.eval(g, l) + n);
+        }
+        if (k != null && op == FunIR.MUL) {
+            int n = k;
+            Expr e1 = this.expr(b.left);
+            return this.specialise("multiply constant", (Expr) (g, l) -> e1.eval(g, l) * n);
+        }
+        if (x >= 0 && y >= 0) {
+            return this.specialise("local arithmetic local", switch (op) {
+                case FunIR.ADD -> (Expr) (g, l) -> l[x] + l[y];
+                case FunIR.SUB -> (Expr) (g, l) -> l[x] - l[y];
+                case FunIR.MUL -> (Expr) (g, l) -> l[x] * l[y];
+                default -> (Expr) (g, l) -> l[x] / l[y];
+            });
+        }
+        Expr e1 = this.expr(b.left);
+        Expr e2 = this.expr(b.right);
+        return switch (op) {
+            case FunIR.ADD -> (g, l) -> e1.eval(g, l) + e2.eval(g, l);
+            case FunIR.SUB -> (g, l) -> e1.eval(g, l) - e2.eval(g, l);
+            case FunIR.MUL -> (g, l) -> e1.eval(g, l) * e2.eval(g, l);
+            default -> (g, l) -> e1.eval(g, l) / e2.eval(g, l);
+        };
+    }
+
+}
@@ -0,0 +1,215 @@
+package fun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * An on-disk cache of compiled programs, shared by every JVM
+ * on the machine that uses the same directory. Each program is
+ * kept as an SVM object file named by a hash of its source
+ * text, the compiler version and the options that affect code
+ * generation, so an unchanged source is loaded rather than
+ * compiled.
+ * <p>
+ * Files are written under a temporary name and then renamed,
+ * so no JVM ever sees a partial one. When the cache grows past
+ * its limit, the least recently used files are deleted. The
+ * statistics, kept in the directory, count the hits, misses
+ * and evictions of every JVM.
+ */
+public class FunCompileCache {
+
+    // Change whenever the code generated for a program changes,
+    // so that programs compiled before are not reused.
+    public static final String COMPILER_VERSION = "fun-2";
+
+    private static final String SUFFIX = ".svm";
+    private static final String LOCK_FILE = "lock";
+    private static final long STALE_MILLIS = 60_000;   // age of an abandoned temporary file
+
+    private final Path dir;
+    private final long limit;           // most bytes kept, over all files
+
+    public FunCompileCache(Path dir, long limit) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.limit = limit;
+    }
+
+    public static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".cache", "fun");
+    }
+
+    public static String key(byte[] source, FunOptions options) {
+        // Return the hash identifying the code compiled from
+        // source with the options.
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String flags = COMPILER_VERSION + ";" + SVMObjectFile.VERSION + ";fold=" + options.folding + ";peep="
+                    + options.peephole + ";inline=" + options.inlining + "," + options.inlineSize + ","
+                    + options.inlineGrowth + ";";
+            digest.update(flags.getBytes(StandardCharsets.UTF_8));
+            digest.update(source);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    public SVM lookup(String key) {
+        // Return the program cached under key, or null if there
+        // is none. A corrupt file is deleted.
+        Path file = this.dir.resolve(key + SUFFIX);
+        SVM program = null;
+        try {
+            program = SVMObjectFile.load(file);
+        } catch (NoSuchFileException x) {
+            // a miss, or evicted by another JVM
+        } catch (IOException x) {
+            delete(file);
+        }
+        if (program != null) touch(file);
+        this.update(program != null ? 1 : 0, program != null ? 0 : 1, 0);
+        return program;
+    }
+
+    public void store(String key, SVM program) throws IOException {
+        // Cache program under key, then evict files until the
+        // cache is within its limit.
+        Path temp = Files.createTempFile(this.dir, key, ".tmp");
+        try {
+            SVMObjectFile.write(program, temp, true);
+            Files.move(temp, this.dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        this.evict();
+    }
+
+    private void evict() throws IOException {
+        // Delete the least recently used files while the total
+        // size exceeds the limit, and any abandoned temporary
+        // files.
+        record Entry(Path file, long size, long used) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long used = Files.getLastModifiedTime(file).toMillis();
+                    if (name.endsWith(SUFFIX)) {
+                        long size = Files.size(file);
+                        entries.add(new Entry(file, size, used));
+                        total += size;
+                    } else if (name.endsWith(".tmp") && now - used > STALE_MILLIS) {
+                        delete(file);
+                    }
+                } catch (NoSuchFileException x) {
+                    // deleted by another JVM
+                }
+            }
+        }
+        if (total <= this.limit) return;
+        entries.sort(Comparator.comparingLong(Entry::used));
+        int evicted = 0;
+        for (Entry entry : entries) {
+            if (total <= this.limit) break;
+            delete(entry.file);
+            total -= entry.size;
+            evicted++;
+        }
+        this.update(0, 0, evicted);
+    }
+
+    private static void touch(Path file) {
+        // Mark file as used now, so it is evicted last.
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException x) {
+            // evicted meanwhile
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException x) {
+            // left for a later eviction
+        }
+    }
+
+    // STATISTICS
+    // The counts are three longs in the lock file, updated
+    // while holding a lock on it. A JVM may hold a file lock
+    // only once, so its threads take turns.
+
+    private long[] update(int hits, int misses, int evictions) {
+        // Add to the counts of hits, misses and evictions, and
+        // return the new counts. The statistics are advisory:
+        // failing to update them does not fail the compilation.
+        long[] counts = new long[3];
+        synchronized (FunCompileCache.class) {
+            try (FileChannel channel = FileChannel.open(this.dir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Closing the channel releases the lock.
+                channel.lock();
+                ByteBuffer buf = ByteBuffer.allocate(3 * Long.BYTES);
+                while (buf.hasRemaining() && channel.read(buf, buf.position()) > 0) ;
+                buf.flip();
+                for (int i = 0; i < counts.length && buf.remaining() >= Long.BYTES; i++) counts[i] = buf.getLong();
+                counts[0] += hits;
+                counts[1] += misses;
+                counts[2] += evictions;
+                buf.clear();
+                for (long count : counts) buf.putLong(count);
+                buf.flip();
+                while (buf.hasRemaining()) channel.write(buf, buf.position());
+            } catch (IOException x) {
+                // statistics lost
+            }
+        }
+        return counts;
+    }
+
+    public String showStats() {
+        // Return the statistics of every JVM using the cache,
+        // and the size of the cache now.
+        long[] counts = this.update(0, 0, 0);
+        long files = 0, bytes = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.dir, "*" + SUFFIX)) {
+            for (Path file : entries) {
+                try {
+                    bytes += Files.size(file);
+                    files++;
+                } catch (NoSuchFileException x) {
+                    // evicted meanwhile
+                }
+            }
+        } catch (IOException x) {
+            // sizes unknown
+        }
+        long lookups = counts[0] + counts[1];
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions; %d programs, %d of %d bytes",
+                counts[0], counts[1], (lookups > 0 ? 100.0 * counts[0] / lookups : 0.0), counts[2], files, bytes,
+                this.limit);
+    }
+
+}
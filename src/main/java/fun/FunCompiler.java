@@ -0,0 +1,99 @@
+package fun;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The compilation of a Fun source program to SVM code, in
+ * phases, optimising it as the options select. The phases
+ * report nothing; FunRun overrides them to report its progress.
+ * Each compiler compiles one program.
+ */
+public class FunCompiler {
+
+    protected final FunOptions options;
+    protected final FunIROptimiser optimiser = new FunIROptimiser();
+    protected final FunIREncoder encoder = new FunIREncoder();
+
+    public FunCompiler(FunOptions options) {
+        this.options = options;
+        if (options.inlining) this.encoder.setInlining(options.inlineSize, options.inlineGrowth);
+    }
+
+    public SVM compile(byte[] source) throws Exception {
+        // Compile the text of a Fun source program, loading its
+        // cached code instead if the options select the cache,
+        // and caching the code compiled otherwise. The text is
+        // UTF-8, as CharStreams.fromFileName assumes.
+        CharStream chars = CharStreams.fromString(new String(source, StandardCharsets.UTF_8), this.options.filename);
+        if (this.options.cacheDir == null) return this.compile(chars);
+        FunCompileCache cache = new FunCompileCache(Path.of(this.options.cacheDir), this.options.cacheLimit);
+        String key = FunCompileCache.key(source, this.options);
+        SVM program = this.lookup(cache, key);
+        if (program == null) {
+            program = this.compile(chars);
+            cache.store(key, program);
+        }
+        return program;
+    }
+
+    public SVM compile(CharStream source) throws Exception {
+        // Compile a Fun source program to SVM code. Throw
+        // FunException if the program has errors.
+        SVM program = this.codeGenerate(this.analyse(source));
+        if (this.options.peephole) this.peephole(program);
+        return program;
+    }
+
+    public FunIR.Program analyse(CharStream source) throws Exception {
+        // Check a Fun source program, then lower it to FunIR,
+        // optimising it if the options select folding. Only the
+        // lowered program outlives analysis, so the syntax tree
+        // and tokens are not kept during code generation.
+        FunFrontEnd.Parse parse = this.syntacticAnalyse(source);
+        if (parse.errors > 0) throw new FunException();
+        FunCheckerVisitor checker = this.contextualAnalyse(parse);
+        if (checker.getNumberOfContextualErrors() > 0) throw new FunException();
+
+        FunLoweringVisitor lowering = new FunLoweringVisitor(checker.getSwitchGuards());
+        lowering.visit(parse.tree);
+        FunIR.Program program = lowering.getProgram();
+        return (this.options.folding ? this.optimise(program) : program);
+    }
+
+    protected SVM lookup(FunCompileCache cache, String key) {
+        return cache.lookup(key);
+    }
+
+    protected FunFrontEnd.Parse syntacticAnalyse(CharStream source) {
+        return FunFrontEnd.parse(source);
+    }
+
+    protected FunCheckerVisitor contextualAnalyse(FunFrontEnd.Parse parse) {
+        FunCheckerVisitor checker = new FunCheckerVisitor(parse.tokens);
+        checker.visit(parse.tree);
+        return checker;
+    }
+
+    protected FunIR.Program optimise(FunIR.Program program) {
+        // Fold and simplify the expressions of a lowered program,
+        // and drop its dead branches.
+        return this.optimiser.optimise(program);
+    }
+
+    protected SVM codeGenerate(FunIR.Program program) {
+        // Emit SVM code for a lowered program, inlining small
+        // procedures if the options select it.
+        this.encoder.encode(program);
+        return this.encoder.getSVM();
+    }
+
+    protected String peephole(SVM program) {
+        // Apply the peephole optimiser, returning a summary.
+        return new SVMPeephole(program).optimise();
+    }
+
+}
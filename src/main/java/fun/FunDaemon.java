@@ -0,0 +1,308 @@
+package fun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-lived server that compiles and runs Fun programs for
+ * clients (see FunClient), so that the JVM, the parser's DFA
+ * and the JIT-compiled interpreter stay warm between requests.
+ * It listens on a Unix-domain socket or a loopback port, and
+ * serves each connection on a thread of its own. Programs
+ * compiled are kept, keyed as in FunCompileCache, so that
+ * running an unchanged source again skips its compilation.
+ * <p>
+ * A request is a command (run, compile, stats or stop) and
+ * its arguments, one per line, ended by an empty line. The
+ * arguments of run and compile are those of FunRun. The input
+ * of a run follows, as text integers. The response is any
+ * output, one integer or message per line, then a last line
+ * "ok" or "error", followed by the time the daemon took to
+ * serve the request in microseconds and, after an error, its
+ * message.
+ */
+public class FunDaemon {
+
+    private static final PrintStream out = System.out;
+
+    public static final int DEFAULT_PORT = 7733;
+    private static final int PROGRAMS = 256;       // most compiled programs kept
+    private static final int WARMUP_RUNS = 20;
+
+    private static final String WARMUP_SOURCE = """
+            func int fib (int n):
+                int r = n
+                if n > 1:
+                    r = fib(n - 1) + fib(n - 2)
+                .
+                return r
+            .
+
+            proc main ():
+                int i = 0
+                while i == 16:
+                    write(fib(i))
+                    i = i + 1
+                .
+            .
+            """;
+
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final Map<String, SVM> programs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SVM> eldest) {
+            return size() > PROGRAMS;
+        }
+    };
+    private final Map<String, Latency> latencies = new TreeMap<>();
+    private volatile boolean stopping = false;
+
+    /**
+     * The number and time of the requests of one command.
+     */
+    private static final class Latency {
+
+        long count, totalNanos, maxNanos;
+
+        void add(long nanos) {
+            this.count++;
+            this.totalNanos += nanos;
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+        }
+
+    }
+
+    public FunDaemon(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            this.server = ServerSocketChannel.open();
+        }
+        this.server.bind(address);
+        this.address = this.server.getLocalAddress();
+    }
+
+    public static SocketAddress address(String arg) throws FunException {
+        // Return the address given by -socket=PATH or -port=N,
+        // or the default port if arg is null.
+        if (arg == null) return new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("-socket=")) return UnixDomainSocketAddress.of(value);
+        if (arg.startsWith("-port=")) {
+            try {
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(value));
+            } catch (IllegalArgumentException x) {
+                // fall through
+            }
+        }
+        throw new FunException();
+    }
+
+    public void warmUp() throws Exception {
+        // Compile and run a small program repeatedly, so that
+        // the first requests are served by warm code.
+        Path file = Files.createTempFile("warmup", ".fun");
+        try {
+            Files.writeString(file, WARMUP_SOURCE);
+            FunOptions options = FunOptions.parse(new String[]{"-notrace", file.toString()});
+            for (int i = 0; i < WARMUP_RUNS; i++)
+                FunRunner.compile(options).interpret(new FunIO.ArrayIO(), false);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void serve() throws IOException {
+        // Accept connections until a stop request, serving
+        // each on a worker thread.
+        try {
+            while (!this.stopping) {
+                SocketChannel client;
+                try {
+                    client = this.server.accept();
+                } catch (IOException x) {
+                    if (this.stopping) break;
+                    throw x;
+                }
+                this.workers.execute(() -> this.handle(client));
+            }
+        } finally {
+            this.workers.shutdown();
+            this.server.close();
+            if (this.address instanceof UnixDomainSocketAddress unix) Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        // Serve one request, then close the connection.
+        String command = "?";
+        try (client) {
+            InputStream in = Channels.newInputStream(client);
+            OutputStream output = Channels.newOutputStream(client);
+            command = readLine(in);
+            if (command == null) return;
+            List<String> args = new ArrayList<>();
+            for (String arg = readLine(in); arg != null && !arg.isEmpty(); arg = readLine(in)) args.add(arg);
+
+            long start = System.nanoTime();
+            String error = null;
+            try {
+                error = this.serve(command, args, in, output);
+            } catch (FunException x) {
+                error = "compilation failed";
+            } catch (Exception | StackOverflowError x) {
+                error = x.toString();
+            }
+            long nanos = System.nanoTime() - start;
+            this.record(command, nanos);
+            String status = (error == null ? "ok " + nanos / 1000 : "error " + nanos / 1000 + " " + error);
+            output.write((status + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+
+            // Closing with input unread would reset the connection,
+            // losing the response, so end it and discard the rest
+            // of the input until the client closes too.
+            client.shutdownOutput();
+            in.transferTo(OutputStream.nullOutputStream());
+            out.printf("%-8s %10.3f ms %s%s\n", command, nanos / 1e6, String.join(" ", args),
+                    (error == null ? "" : " failed " + error));
+        } catch (IOException x) {
+            out.printf("%-8s connection failed %s\n", command, x);
+        }
+    }
+
+    private String serve(String command, List<String> args, InputStream in, OutputStream output)
+            throws Exception {
+        // Serve the request, writing any output. Return null,
+        // or the message of an error.
+        switch (command) {
+            case "run" -> {
+                SVM program = this.program(FunOptions.parse(args.toArray(new String[0])));
+                FunIO io = new FunIO.BatchedIO(new FunIO.StreamIO(FunInput.text(in), output, false), 4096);
+                program.interpret(io, false);
+                return null;
+            }
+            case "compile" -> {
+                SVM program = this.program(FunOptions.parse(args.toArray(new String[0])));
+                output.write(("compiled " + program.cl + " bytes\n").getBytes(StandardCharsets.UTF_8));
+                return null;
+            }
+            case "stats" -> {
+                output.write(this.showStats().getBytes(StandardCharsets.UTF_8));
+                return null;
+            }
+            case "stop" -> {
+                this.stopping = true;
+                this.server.close();
+                return null;
+            }
+            default -> {
+                return "unknown command " + command;
+            }
+        }
+    }
+
+    private SVM program(FunOptions options) throws Exception {
+        // Return the program compiled from the source with the
+        // options, compiling it unless it is kept already. Its
+        // execution modes are part of its key, since runs of
+        // one program share them.
+        if (FunRun.isObjectFile(options.filename)) return FunRunner.compile(options);
+        byte[] source = Files.readAllBytes(Path.of(options.filename));
+        String key = FunCompileCache.key(source, options) + ";fuse=" + options.fusing + ";tos=" + options.caching
+                + ";jit=" + options.compiling + ";tiered=" + options.tiering + "," + options.callThreshold + ","
+                + options.loopThreshold;
+        synchronized (this.programs) {
+            SVM program = this.programs.get(key);
+            if (program != null) return program;
+        }
+        SVM program = FunRunner.compile(source, options);
+        synchronized (this.programs) {
+            this.programs.putIfAbsent(key, program);
+            return this.programs.get(key);
+        }
+    }
+
+    private void record(String command, long nanos) {
+        synchronized (this.latencies) {
+            this.latencies.computeIfAbsent(command, c -> new Latency()).add(nanos);
+        }
+    }
+
+    public String showStats() {
+        // Return the number and latency of the requests served,
+        // by command.
+        StringBuilder s = new StringBuilder();
+        synchronized (this.latencies) {
+            for (Map.Entry<String, Latency> e : this.latencies.entrySet()) {
+                Latency l = e.getValue();
+                s.append(String.format("%-8s %8d requests %10.3f ms mean %10.3f ms max\n", e.getKey(), l.count,
+                        l.totalNanos / 1e6 / l.count, l.maxNanos / 1e6));
+            }
+        }
+        synchronized (this.programs) {
+            s.append(this.programs.size()).append(" programs kept\n");
+        }
+        s.append(FunFrontEnd.showStats()).append('\n');
+        return s.toString();
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        // Read a line of UTF-8 text, without buffering beyond
+        // it. Return null at the end of the stream.
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return (line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null);
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) {
+        // Serve on the address given by -socket=PATH or -port=N,
+        // by default on the loopback port DEFAULT_PORT.
+        try {
+            String arg = null;
+            for (String a : args) {
+                if (arg != null || !(a.startsWith("-socket=") || a.startsWith("-port="))) throw new FunException();
+                arg = a;
+            }
+            FunDaemon daemon = new FunDaemon(address(arg));
+            long start = System.nanoTime();
+            daemon.warmUp();
+            out.printf("Warmed up in %.3f ms\n", (System.nanoTime() - start) / 1e6);
+            out.println("Serving on " + daemon.address + " ...");
+            daemon.serve();
+        } catch (FunException x) {
+            out.println("Usage: FunDaemon [-socket=PATH | -port=N]");
+        } catch (Exception x) {
+            x.printStackTrace(out);
+        }
+    }
+
+}
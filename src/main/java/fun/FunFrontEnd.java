@@ -0,0 +1,117 @@
+package fun;
+
+import ast.FunLexer;
+import ast.FunParser;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The lexer and parser of Fun source programs, reused from one
+ * compilation to the next by each thread. All of them share the
+ * DFA cache of the generated lexer and parser, which grows as
+ * programs are parsed, so parsing speeds up as the JVM warms.
+ * <p>
+ * A program is first parsed with SLL prediction, which is
+ * faster, giving up at the first syntax error. Only then is it
+ * parsed again with full LL prediction, which reports the
+ * errors. SLL succeeds on every valid Fun program in practice.
+ */
+public class FunFrontEnd {
+
+    /**
+     * The outcome of parsing a program.
+     */
+    public static final class Parse {
+
+        public final ParseTree tree;
+        public final CommonTokenStream tokens;
+        public final int errors;            // syntax errors reported
+        public final boolean fullLL;        // reparsed with full LL prediction
+        public final long nanos;            // time lexing and parsing
+
+        Parse(ParseTree tree, CommonTokenStream tokens, int errors, boolean fullLL, long nanos) {
+            this.tree = tree;
+            this.tokens = tokens;
+            this.errors = errors;
+            this.fullLL = fullLL;
+            this.nanos = nanos;
+        }
+
+        public String showTime() {
+            return String.format("Parsed in %.3f ms (%s)", this.nanos / 1e6, (this.fullLL ? "LL" : "SLL"));
+        }
+
+    }
+
+    private static final ThreadLocal<FunFrontEnd> instances = ThreadLocal.withInitial(FunFrontEnd::new);
+    private static final BailErrorStrategy BAIL = new BailErrorStrategy();
+
+    // Totals over all threads.
+    private static final LongAdder parses = new LongAdder();
+    private static final LongAdder fallbacks = new LongAdder();
+    private static final LongAdder parseNanos = new LongAdder();
+
+    private final FunLexer lexer = new FunLexer(null);
+    private final FunParser parser = new FunParser(null);
+
+    private FunFrontEnd() {
+    }
+
+    public static Parse parse(CharStream source) {
+        // Lex and parse the source on this thread's lexer and
+        // parser. Print any error messages.
+        return instances.get().run(source);
+    }
+
+    private Parse run(CharStream source) {
+        long start = System.nanoTime();
+        this.lexer.setInputStream(source);
+        CommonTokenStream tokens = new CommonTokenStream(this.lexer);
+        this.parser.setTokenStream(tokens);
+        this.parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        this.parser.setErrorHandler(BAIL);
+        this.parser.removeErrorListeners();
+
+        ParseTree tree;
+        boolean fullLL = false;
+        try {
+            tree = this.parser.program();
+        } catch (ParseCancellationException x) {
+            // The tokens are kept, so only the parse is repeated.
+            fullLL = true;
+            tokens.seek(0);
+            this.parser.setTokenStream(tokens);
+            this.parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            this.parser.setErrorHandler(new DefaultErrorStrategy());
+            this.parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            tree = this.parser.program();
+        }
+        int errors = this.parser.getNumberOfSyntaxErrors();
+
+        // Keep no reference to the program once parsed.
+        this.parser.setTokenStream(null);
+        this.lexer.setInputStream(null);
+
+        long nanos = System.nanoTime() - start;
+        parses.increment();
+        if (fullLL) fallbacks.increment();
+        parseNanos.add(nanos);
+        return new Parse(tree, tokens, errors, fullLL, nanos);
+    }
+
+    public static String showStats() {
+        // Return the number and time of the parses so far.
+        long n = parses.sum();
+        return String.format("%d parses, %d reparsed with full LL, %.3f ms in all, %.3f ms mean", n,
+                fallbacks.sum(), parseNanos.sum() / 1e6, (n > 0 ? parseNanos.sum() / 1e6 / n : 0.0));
+    }
+
+}
@@ -0,0 +1,202 @@
+package fun;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The channels through which a running Fun program calls the
+ * predefined procedures read and write. Each run is given its
+ * own FunIO, so programs run in one JVM need not share the
+ * console.
+ */
+public interface FunIO {
+
+    int read();                 // read the next integer
+
+    void write(int value);      // write an integer
+
+    void flush();               // deliver all output written so far
+
+    default boolean ready() {   // true if read will not wait for input
+        return false;
+    }
+
+    static FunIO console() {
+        // Return the IO channels of the console, shared by all
+        // runs that use them.
+        return StreamIO.CONSOLE;
+    }
+
+    /**
+     * Integers read from a FunInput and written to an output
+     * stream, one per line, optionally with "? " prompting each
+     * read. Output is flushed on every write.
+     */
+    class StreamIO implements FunIO {
+
+        private static final StreamIO CONSOLE = new StreamIO(System.in, System.out);
+        private static final String NEWLINE = System.lineSeparator();
+
+        private final FunInput in;
+        private final Writer out;
+        private final boolean prompting;
+
+        public StreamIO(InputStream in, OutputStream out) {
+            // Read text integers, prompting for each.
+            this(FunInput.text(in), out, true);
+        }
+
+        public StreamIO(FunInput in, OutputStream out, boolean prompting) {
+            this.in = in;
+            this.out = new BufferedWriter(new OutputStreamWriter(out));
+            this.prompting = prompting;
+        }
+
+        @Override
+        public int read() {
+            // The prompt, and any output before it, need only be
+            // seen before waiting for input.
+            if (this.prompting) this.print("? ");
+            if (!this.in.ready()) this.flush();
+            return this.in.nextInt();
+        }
+
+        @Override
+        public boolean ready() {
+            return this.in.ready();
+        }
+
+        @Override
+        public void write(int value) {
+            this.print(Integer.toString(value));
+            this.print(NEWLINE);
+            this.flush();
+        }
+
+        void print(String s) {
+            // Add s to the output, without flushing it.
+            try {
+                this.out.write(s);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                this.out.flush();
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+
+    }
+
+    /**
+     * Integers read from an array, and written to a growing
+     * array, for running a program against in-memory data.
+     */
+    class ArrayIO implements FunIO {
+
+        private final int[] input;
+        private int next = 0;           // index of the next input
+        private int[] output = new int[16];
+        private int written = 0;        // number of outputs
+
+        public ArrayIO(int... input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() {
+            if (this.next == this.input.length) throw new NoSuchElementException("input exhausted");
+            return this.input[this.next++];
+        }
+
+        @Override
+        public void write(int value) {
+            if (this.written == this.output.length) this.output = Arrays.copyOf(this.output, 2 * this.written);
+            this.output[this.written++] = value;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        public int[] output() {
+            // Return the integers written so far.
+            return Arrays.copyOf(this.output, this.written);
+        }
+
+    }
+
+    /**
+     * Output collected in batches before being passed on to
+     * another FunIO, which is then flushed once per batch: when
+     * the batch is full, before a read that must wait for input,
+     * and when the program halts.
+     */
+    class BatchedIO implements FunIO {
+
+        private final FunIO target;
+        private final int[] batch;
+        private int size = 0;           // number of values in the batch
+
+        public BatchedIO(FunIO target, int threshold) {
+            this.target = target;
+            this.batch = new int[threshold];
+        }
+
+        @Override
+        public int read() {
+            // The target flushes the batch if it must wait.
+            this.drain();
+            return this.target.read();
+        }
+
+        @Override
+        public boolean ready() {
+            return this.target.ready();
+        }
+
+        @Override
+        public void write(int value) {
+            this.batch[this.size++] = value;
+            if (this.size == this.batch.length) this.flush();
+        }
+
+        @Override
+        public void flush() {
+            this.drain();
+            this.target.flush();
+        }
+
+        private void drain() {
+            // Pass the batch on, without flushing a stream.
+            if (this.target instanceof StreamIO stream) {
+                for (int i = 0; i < this.size; i++) {
+                    stream.print(Integer.toString(this.batch[i]));
+                    stream.print(StreamIO.NEWLINE);
+                }
+            } else {
+                for (int i = 0; i < this.size; i++) this.target.write(this.batch[i]);
+            }
+            this.size = 0;
+        }
+
+    }
+
+}
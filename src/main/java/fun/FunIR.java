@@ -0,0 +1,222 @@
+package fun;
+
+/**
+ * A checked Fun program in a compact, typed intermediate form,
+ * lowered from its parse tree by FunLoweringVisitor. Every
+ * identifier is resolved: a variable to its global or local
+ * slot and a procedure to the index of its declaration, so the
+ * passes that follow need neither the parse tree nor a symbol
+ * table, and the tree may be released once it is lowered.
+ * <p>
+ * Sequences of commands are arrays. Nodes are immutable, so a
+ * pass that rewrites a program builds the nodes it changes and
+ * shares the rest.
+ */
+public class FunIR {
+
+    // Procedure indexes of the predefined procedures.
+    public static final int READ = -1, WRITE = -2;
+
+    // Operators of Binary nodes.
+    public static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3, EQ = 4, LT = 5, GT = 6;
+
+    // EXPRESSIONS
+
+    public abstract static class Expr {
+
+        public final Type type;             // Type.INT or Type.BOOL
+
+        Expr(Type type) {
+            this.type = type;
+        }
+
+    }
+
+    public static final class Const extends Expr {
+
+        public final int value;             // fits in 16 bits, as a LOADC operand
+
+        public Const(Type type, int value) {
+            super(type);
+            this.value = value;
+        }
+
+    }
+
+    public static final class Var extends Expr {
+
+        // Every use of one variable shares its Var node. A local
+        // slot counts from the parameter, if any, then the local
+        // variables in order of declaration.
+        public final boolean global;
+        public final int slot;
+
+        public Var(Type type, boolean global, int slot) {
+            super(type);
+            this.global = global;
+            this.slot = slot;
+        }
+
+    }
+
+    public static final class Binary extends Expr {
+
+        public final int op;
+        public final Expr left, right;
+
+        public Binary(int op, Expr left, Expr right) {
+            super(op >= EQ ? Type.BOOL : Type.INT);
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean isComparison() {
+            return this.op >= EQ;
+        }
+
+    }
+
+    public static final class Not extends Expr {
+
+        public final Expr operand;
+
+        public Not(Expr operand) {
+            super(Type.BOOL);
+            this.operand = operand;
+        }
+
+    }
+
+    public static final class Call extends Expr {
+
+        public final int proc;
+        public final Expr arg;              // null if none
+
+        public Call(Type type, int proc, Expr arg) {
+            super(type);
+            this.proc = proc;
+            this.arg = arg;
+        }
+
+    }
+
+    // COMMANDS
+
+    public abstract static class Com {
+    }
+
+    public static final class Assign extends Com {
+
+        public final Var target;
+        public final Expr value;
+
+        public Assign(Var target, Expr value) {
+            this.target = target;
+            this.value = value;
+        }
+
+    }
+
+    public static final class ProcCall extends Com {
+
+        public final int proc;
+        public final Expr arg;              // null if none
+        public final boolean tail;          // in tail position in a proc body
+
+        public ProcCall(int proc, Expr arg, boolean tail) {
+            this.proc = proc;
+            this.arg = arg;
+            this.tail = tail;
+        }
+
+    }
+
+    public static final class If extends Com {
+
+        public final Expr cond;
+        public final Com[] thenCom;
+        public final Com[] elseCom;         // null if none
+
+        public If(Expr cond, Com[] thenCom, Com[] elseCom) {
+            this.cond = cond;
+            this.thenCom = thenCom;
+            this.elseCom = elseCom;
+        }
+
+    }
+
+    public static final class Loop extends Com {
+
+        // A while or repeat-until loop, which exits as soon as
+        // its condition is true, or never if it has none.
+        public final Expr exit;             // null if none
+        public final Com[] body;
+
+        public Loop(Expr exit, Com[] body) {
+            this.exit = exit;
+            this.body = body;
+        }
+
+    }
+
+    public static final class Switch extends Com {
+
+        // Case i of a switch is tested either by its guards, for
+        // a jump table, or by comparisons: with single[i] if it
+        // is a single literal, else with below[i] and above[i],
+        // the values just outside its range.
+        public final Expr subject;
+        public final SwitchGuards guards;   // null if unknown
+        public final Expr[] single, below, above;
+        public final Com[][] cases;
+        public final Com[] defaultCom;
+
+        public Switch(Expr subject, SwitchGuards guards, Expr[] single, Expr[] below, Expr[] above,
+                      Com[][] cases, Com[] defaultCom) {
+            this.subject = subject;
+            this.guards = guards;
+            this.single = single;
+            this.below = below;
+            this.above = above;
+            this.cases = cases;
+            this.defaultCom = defaultCom;
+        }
+
+    }
+
+    // DECLARATIONS
+
+    public static final class Procedure {
+
+        public final String name;
+        public final boolean hasParam;
+        public final Expr[] locals;         // initialisers of the local variables
+        public final Com[] body;
+        public final Expr result;           // null for a proc
+
+        public Procedure(String name, boolean hasParam, Expr[] locals, Com[] body, Expr result) {
+            this.name = name;
+            this.hasParam = hasParam;
+            this.locals = locals;
+            this.body = body;
+            this.result = result;
+        }
+
+    }
+
+    public static final class Program {
+
+        public final Expr[] globals;        // initialisers of the global variables
+        public final Procedure[] procs;
+        public final int main;              // index of main in procs
+
+        public Program(Expr[] globals, Procedure[] procs, int main) {
+            this.globals = globals;
+            this.procs = procs;
+            this.main = main;
+        }
+
+    }
+
+}
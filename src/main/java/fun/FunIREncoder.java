@@ -0,0 +1,505 @@
+package fun;
+
+import fun.FunIR.Com;
+import fun.FunIR.Expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Code generation for Fun, from the FunIR form of a checked and
+ * optionally optimised program to SVM code. Variables are at
+ * the addresses of their slots, and procedures at the code
+ * addresses recorded as each is encoded.
+ * Based on a previous version developed by
+ * David Watt and Simon Gay (University of Glasgow).
+ */
+public class FunIREncoder {
+
+    private static final int MAX_TABLE = 1024;   // most entries in a TABLE
+
+    private final SVM obj = new SVM();
+    private FunIR.Procedure[] procs;
+    private int[] procAddrs;            // code address of each procedure encoded
+    private int globalVarAddr = 0;
+    private boolean local = false;      // encoding a procedure
+    private int frameBase = 2;          // address of local slot 0
+    private int localVarAddr = 0;
+
+    // Inlining of small procedures (disabled unless inlineSize > 0).
+    private boolean[] inlinable;
+    private int[] codeSizes;            // bytes of each procedure
+    private final Map<String, Integer> inlined = new LinkedHashMap<>();   // calls inlined, by callee and caller
+    private int inlineSize = 0;         // largest procedure inlined, in bytes
+    private int inlineGrowth = 0;       // most bytes inlined into one procedure
+    private int growth = 0;             // bytes inlined into the current procedure
+    private int inlineDepth = 0;        // inlined bodies being encoded
+    private String currentProc;
+
+    public SVM getSVM() {
+        return this.obj;
+    }
+
+    public void setInlining(int maxSize, int maxGrowth) {
+        // Inline calls of procedures of at most maxSize bytes,
+        // adding at most maxGrowth bytes to any one procedure.
+        // Must be called before encoding the program.
+        this.inlineSize = maxSize;
+        this.inlineGrowth = maxGrowth;
+    }
+
+    public String showInlining() {
+        // Return a report of the calls inlined.
+        if (this.inlined.isEmpty()) return "no calls inlined";
+        StringBuilder s = new StringBuilder();
+        this.inlined.forEach((site, n) -> s.append(String.format("%s (%d call%s)\n", site, n, n == 1 ? "" : "s")));
+        return s.toString().trim();
+    }
+
+    private int address(int proc) {
+        // Return the code address of the procedure proc.
+        return switch (proc) {
+            case FunIR.READ -> SVM.READ_OFF_SET;
+            case FunIR.WRITE -> SVM.WRITE_OFF_SET;
+            default -> this.procAddrs[proc];
+        };
+    }
+
+    public void encode(FunIR.Program program) {
+        this.procs = program.procs;
+        this.procAddrs = new int[this.procs.length];
+        this.inlinable = new boolean[this.procs.length];
+        this.codeSizes = new int[this.procs.length];
+
+        for (Expr init : program.globals) {
+            this.encodeValue(init);
+            this.globalVarAddr++;
+        }
+        this.obj.setGlobals(this.globalVarAddr);
+
+        int callAddr = this.obj.currentOffset();
+        this.obj.emit12(SVM.CALL, 0);
+        this.obj.emit1(SVM.HALT);
+
+        for (int i = 0; i < this.procs.length; i++) this.encodeProcedure(i);
+
+        this.obj.patch12(callAddr, this.procAddrs[program.main]);
+    }
+
+    private void encodeProcedure(int index) {
+        FunIR.Procedure proc = this.procs[index];
+        int start = this.obj.currentOffset();
+        this.procAddrs[index] = start;
+        this.obj.defineProcedure(proc.name, start);
+        this.local = true;
+        this.frameBase = 2;
+        this.localVarAddr = 2;
+        this.currentProc = proc.name;
+        this.growth = 0;
+
+        // ... allows 2 words for link data
+        if (proc.hasParam) {
+            this.localVarAddr++;
+            this.obj.emit11(SVM.COPYARG, 1);
+        }
+        for (Expr init : proc.locals) {
+            this.encodeValue(init);
+            this.localVarAddr++;
+        }
+        this.encodeSeq(proc.body);
+
+        if (proc.result == null) {
+            this.obj.emit11(SVM.RETURN, 0);
+        } else {
+            // A call as the result is inlined if possible, or else
+            // is a tail call, reusing this frame.
+            FunIR.Call call = (proc.result instanceof FunIR.Call c ? c : null);
+            if (call == null || !this.encodeInlined(call.proc, call.arg)) {
+                if (call != null && this.address(call.proc) < SVM.IO_BASE) {
+                    if (call.arg != null) this.encode(call.arg);
+                    this.obj.emit12(SVM.TCALL, this.address(call.proc));
+                } else {
+                    this.encode(proc.result);
+                }
+            }
+            this.obj.emit11(SVM.RETURN, 1);
+        }
+        this.local = false;
+
+        // Calls of the procedure may be inlined if it is small
+        // and does not call itself.
+        int size = this.obj.currentOffset() - start;
+        this.codeSizes[index] = size;
+        this.inlinable[index] = (size <= this.inlineSize && !calls(proc, index));
+    }
+
+    private static boolean calls(FunIR.Procedure proc, int index) {
+        // Return true iff proc contains a call of the procedure index.
+        for (Expr init : proc.locals)
+            if (calls(init, index)) return true;
+        return calls(proc.body, index) || proc.result != null && calls(proc.result, index);
+    }
+
+    private static boolean calls(Com[] coms, int index) {
+        for (Com c : coms) {
+            if (c instanceof FunIR.Assign assign && calls(assign.value, index)) return true;
+            if (c instanceof FunIR.ProcCall call && (call.proc == index || calls(call.arg, index))) return true;
+            if (c instanceof FunIR.If ifCom && (calls(ifCom.cond, index) || calls(ifCom.thenCom, index)
+                    || ifCom.elseCom != null && calls(ifCom.elseCom, index))) return true;
+            if (c instanceof FunIR.Loop loop && (calls(loop.exit, index) || calls(loop.body, index))) return true;
+            if (c instanceof FunIR.Switch sw) {
+                if (calls(sw.subject, index) || calls(sw.defaultCom, index)) return true;
+                for (Com[] body : sw.cases)
+                    if (calls(body, index)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean calls(Expr e, int index) {
+        if (e instanceof FunIR.Binary b) return calls(b.left, index) || calls(b.right, index);
+        if (e instanceof FunIR.Not not) return calls(not.operand, index);
+        if (e instanceof FunIR.Call call) return call.proc == index || calls(call.arg, index);
+        return false;
+    }
+
+    private void encodeValue(Expr expr) {
+        // Encode expr, whose value is pushed just above the
+        // variables of the current frame. A call there may be
+        // inlined.
+        if (!(expr instanceof FunIR.Call call) || !this.encodeInlined(call.proc, call.arg))
+            this.encode(expr);
+    }
+
+    /*
+     *               CODE TEMPLATE FOR INLINED CALLS
+     *  <argument>                       # the parameter, at local address d
+     *  <variable declarations>          # the locals, at d+1 ...
+     *  <command body of proc or func>
+     *  <result expression>              # func only
+     *  STOREL d                         # func only: result to d
+     *  POP    n                         # drop the parameter and locals
+     */
+    private boolean encodeInlined(int index, Expr arg) {
+        // If the procedure index may be inlined here, encode its
+        // body in place of a call and return true. Its parameter
+        // and locals take the words above the variables of the
+        // current frame, which must be the top of the stack.
+        if (index < 0 || !this.inlinable[index] || !this.local) return false;
+        int size = this.codeSizes[index];
+        if (this.growth + size > this.inlineGrowth) return false;
+        this.growth += size;
+        FunIR.Procedure proc = this.procs[index];
+        this.inlined.merge(proc.name + " into " + this.currentProc, 1, Integer::sum);
+
+        int base = this.localVarAddr;
+        if (arg != null) this.encodeValue(arg);
+        int callerBase = this.frameBase;
+        this.frameBase = base;
+        this.inlineDepth++;
+
+        if (proc.hasParam) this.localVarAddr++;
+        for (Expr init : proc.locals) {
+            this.encodeValue(init);
+            this.localVarAddr++;
+        }
+        this.encodeSeq(proc.body);
+
+        int words = this.localVarAddr - base;
+        if (proc.result != null) {
+            this.encodeValue(proc.result);
+            if (words > 0) this.obj.emit12(SVM.STOREL, base);
+            if (words > 1) this.obj.emit12(SVM.POP, words - 1);
+        } else if (words > 0) {
+            this.obj.emit12(SVM.POP, words);
+        }
+
+        this.inlineDepth--;
+        this.localVarAddr = base;
+        this.frameBase = callerBase;
+        return true;
+    }
+
+    // COMMANDS
+
+    private void encodeSeq(Com[] coms) {
+        for (Com c : coms) this.encodeCom(c);
+    }
+
+    private void encodeCom(Com c) {
+        if (c instanceof FunIR.Assign assign) {
+            this.encodeValue(assign.value);
+            FunIR.Var v = assign.target;
+            if (v.global) this.obj.emit12(SVM.STOREG, v.slot);
+            else this.obj.emit12(SVM.STOREL, this.frameBase + v.slot);
+        } else if (c instanceof FunIR.ProcCall call) {
+            this.encodeProcCall(call);
+        } else if (c instanceof FunIR.If ifCom) {
+            this.encodeIf(ifCom);
+        } else if (c instanceof FunIR.Loop loop) {
+            this.encodeLoop(loop);
+        } else if (c instanceof FunIR.Switch sw) {
+            this.encodeSwitch(sw);
+        }
+    }
+
+    private void encodeProcCall(FunIR.ProcCall call) {
+        if (this.encodeInlined(call.proc, call.arg)) return;
+        if (call.arg != null) this.encodeValue(call.arg);
+        int procAddr = this.address(call.proc);
+
+        // Calls within an inlined body are not in tail position.
+        boolean tail = call.tail && this.inlineDepth == 0 && procAddr < SVM.IO_BASE;
+        this.obj.emit12(tail ? SVM.TCALL : SVM.CALL, procAddr);
+    }
+
+    private void encodeIf(FunIR.If ifCom) {
+        int condAddr = this.encodeBranch(ifCom.cond, false, 0);
+
+        if (ifCom.elseCom == null) { // IF without ELSE
+            this.encodeSeq(ifCom.thenCom);
+            int exitAddr = this.obj.currentOffset();
+            this.obj.patch12(condAddr, exitAddr);
+
+        } else {                // IF ... ELSE
+            this.encodeSeq(ifCom.thenCom);
+            int jumpAddr = this.obj.currentOffset();
+            this.obj.emit12(SVM.JUMP, 0);
+
+            int elseAddr = this.obj.currentOffset();
+            this.obj.patch12(condAddr, elseAddr);
+            this.encodeSeq(ifCom.elseCom);
+
+            int exitAddr = this.obj.currentOffset();
+            this.obj.patch12(jumpAddr, exitAddr);
+        }
+    }
+
+    /*
+     *               CODE TEMPLATE FOR LOOPS
+     *  JUMP   test                      # enter at the test
+     *                                   # body address
+     *  <command body of loop>
+     *                                   # test address
+     *  LOADC  expr                      # or a compare-and-branch
+     *  JUMPF  body                      # loop back while expression is false
+     */
+    private void encodeLoop(FunIR.Loop loop) {
+        // Encode a loop that exits as soon as its condition is
+        // true, testing it at the bottom so that each iteration
+        // takes a single branch. A loop without a condition
+        // needs no test.
+        int bodyAddr = this.obj.currentOffset();
+        if (loop.exit == null) {
+            this.encodeSeq(loop.body);
+            this.obj.emit12(SVM.JUMP, bodyAddr);
+            return;
+        }
+        int entryAddr = this.obj.currentOffset();
+        this.obj.emit12(SVM.JUMP, 0);
+        bodyAddr = this.obj.currentOffset();
+        this.encodeSeq(loop.body);
+
+        this.obj.patch12(entryAddr, this.obj.currentOffset());
+        this.encodeBranch(loop.exit, false, bodyAddr);
+    }
+
+    /*
+     *               CODE TEMPLATE FOR SWITCH
+     *  LOADC  expr
+     *  STOREG expr                      # store the expr into globals
+     *
+     *                                   # case #1
+     *  LOADC literal                    # load the case literal
+     *  LOADG expr                       # load the expr back into the stack
+     *  JUMPNE nxt                       # jump to next case/default if not equal
+     *  <command body of case>
+     *  JUMP   end                       # jump to end of switch
+     *                                   # next address
+     *  <other cases matching the above>
+     *                                   # next address
+     *                                   # default
+     *  <command body of default>
+     *                                   # end address
+     *
+     */
+    private void encodeSwitch(FunIR.Switch sw) {
+        SwitchGuards guards = sw.guards;
+        if (guards != null) {
+            this.encodeJumpSwitch(sw, guards);
+            return;
+        }
+
+        // Otherwise the subject is kept in a global word beyond
+        // the variables, one for each switch being encoded, and
+        // each case is tested in turn.
+        this.encode(sw.subject);
+        int subjectAddr = this.globalVarAddr++;
+        this.obj.emit12(SVM.STOREG, subjectAddr);
+
+        int[] patches = new int[sw.cases.length];
+        for (int i = 0; i < patches.length; i++) {
+            List<Integer> conditions = new ArrayList<>();
+            if (sw.single[i] != null) {
+                this.encode(sw.single[i]);
+                this.obj.emit12(SVM.LOADG, subjectAddr);
+                conditions.add(this.obj.currentOffset());
+                this.obj.emit12(SVM.JUMPNE, 0); // To be patched
+            } else {
+                // Each bound is tested as it is pushed, so a failed
+                // test leaves nothing on the stack.
+                this.encode(sw.below[i]);
+                this.obj.emit12(SVM.LOADG, subjectAddr);
+                conditions.add(this.obj.currentOffset());
+                this.obj.emit12(SVM.JUMPGE, 0); // To be patched
+
+                this.encode(sw.above[i]);
+                this.obj.emit12(SVM.LOADG, subjectAddr);
+                conditions.add(this.obj.currentOffset());
+                this.obj.emit12(SVM.JUMPLE, 0); // to be patched
+            }
+
+            this.encodeSeq(sw.cases[i]);
+            patches[i] = this.obj.currentOffset();
+            this.obj.emit12(SVM.JUMP, 0); // After finished jump to end
+
+            int exitAddr = this.obj.currentOffset();
+            for (int condAddr : conditions) {
+                this.obj.patch12(condAddr, exitAddr); // Patching to next case or default
+            }
+        }
+        this.encodeSeq(sw.defaultCom);
+
+        int endAddr = this.obj.currentOffset();
+        for (int patchLoc : patches) {
+            this.obj.patch12(patchLoc, endAddr);
+        }
+        this.globalVarAddr--;
+    }
+
+    /*
+     *               CODE TEMPLATE FOR SWITCH WITH KNOWN GUARDS
+     *  LOADC  expr
+     *  TABLE  lo n                      # if the guards are dense, or
+     *  JUMP   default                   # jump to default if not lo..lo+n-1
+     *  JUMP   case                      # n jumps, one for each of lo..lo+n-1
+     *
+     *  LOOKUP n                         # if the guards are sparse
+     *  JUMP   default                   # jump to default if in no range
+     *  RANGE  lo hi                     # n sorted ranges, each followed by
+     *  JUMP   case                      # the jump to its case
+     *
+     *  <command body of case>           # for each case
+     *  JUMP   end
+     *  <command body of default>
+     *                                   # end address
+     */
+    private void encodeJumpSwitch(FunIR.Switch sw, SwitchGuards guards) {
+        this.encode(sw.subject);
+        List<int[]> jumps = new ArrayList<>();     // {JUMP address, case or -1 for default}
+        long span = (long) guards.max() - guards.min() + 1;
+
+        if (span <= MAX_TABLE && span <= 2 * guards.covered() + 8) {
+            int lo = guards.min();
+            int[] table = new int[(int) span];
+            Arrays.fill(table, -1);
+            for (int i = 0; i < guards.size(); i++)
+                for (int v = guards.low[i]; v <= guards.high[i]; v++) table[v - lo] = i;
+
+            this.obj.emit122(SVM.TABLE, lo, table.length);
+            jumps.add(new int[]{this.obj.currentOffset(), -1});
+            this.obj.emit12(SVM.JUMP, 0);
+            for (int i : table) {
+                jumps.add(new int[]{this.obj.currentOffset(), i});
+                this.obj.emit12(SVM.JUMP, 0);
+            }
+        } else {
+            int[] order = guards.order();
+
+            this.obj.emit12(SVM.LOOKUP, order.length);
+            jumps.add(new int[]{this.obj.currentOffset(), -1});
+            this.obj.emit12(SVM.JUMP, 0);
+            for (int i : order) {
+                this.obj.emit122(SVM.RANGE, guards.low[i], guards.high[i]);
+                jumps.add(new int[]{this.obj.currentOffset(), i});
+                this.obj.emit12(SVM.JUMP, 0);
+            }
+        }
+
+        int[] caseAddrs = new int[guards.size()];
+        int[] exits = new int[guards.size()];
+        for (int i = 0; i < guards.size(); i++) {
+            caseAddrs[i] = this.obj.currentOffset();
+            this.encodeSeq(sw.cases[i]);
+            exits[i] = this.obj.currentOffset();
+            this.obj.emit12(SVM.JUMP, 0); // After finished jump to end
+        }
+        int defaultAddr = this.obj.currentOffset();
+        this.encodeSeq(sw.defaultCom);
+
+        int endAddr = this.obj.currentOffset();
+        for (int[] jump : jumps) this.obj.patch12(jump[0], jump[1] < 0 ? defaultAddr : caseAddrs[jump[1]]);
+        for (int exit : exits) this.obj.patch12(exit, endAddr);
+    }
+
+    // EXPRESSIONS
+
+    private int encodeBranch(Expr cond, boolean jumpIfTrue, int target) {
+        // Encode a jump to target, taken when the condition cond
+        // is jumpIfTrue, and return the jump's address. A
+        // comparison becomes a single compare-and-branch; not is
+        // seen through.
+        while (cond instanceof FunIR.Not not) {
+            cond = not.operand;
+            jumpIfTrue = !jumpIfTrue;
+        }
+
+        if (cond instanceof FunIR.Binary b && b.isComparison()) {
+            this.encode(b.left);
+            this.encode(b.right);
+            byte jump = switch (b.op) {
+                case FunIR.EQ -> SVM.JUMPEQ;
+                case FunIR.LT -> SVM.JUMPLT;
+                default -> SVM.JUMPGT;
+            };
+            int addr = this.obj.currentOffset();
+            this.obj.emit12(jumpIfTrue ? jump : SVM.negation(jump), target);
+            return addr;
+        }
+        this.encode(cond);
+        int addr = this.obj.currentOffset();
+        this.obj.emit12(jumpIfTrue ? SVM.JUMPT : SVM.JUMPF, target);
+        return addr;
+    }
+
+    private void encode(Expr e) {
+        if (e instanceof FunIR.Const c) {
+            this.obj.emit12(SVM.LOADC, c.value);
+        } else if (e instanceof FunIR.Var v) {
+            if (v.global) this.obj.emit12(SVM.LOADG, v.slot);
+            else this.obj.emit12(SVM.LOADL, this.frameBase + v.slot);
+        } else if (e instanceof FunIR.Binary b) {
+            this.encode(b.left);
+            this.encode(b.right);
+            this.obj.emit1(switch (b.op) {
+                case FunIR.ADD -> SVM.ADD;
+                case FunIR.SUB -> SVM.SUB;
+                case FunIR.MUL -> SVM.MUL;
+                case FunIR.DIV -> SVM.DIV;
+                case FunIR.EQ -> SVM.CMPEQ;
+                case FunIR.LT -> SVM.CMPLT;
+                default -> SVM.CMPGT;
+            });
+        } else if (e instanceof FunIR.Not not) {
+            this.encode(not.operand);
+            this.obj.emit1(SVM.INV);
+        } else if (e instanceof FunIR.Call call) {
+            if (call.arg != null) this.encode(call.arg);
+            this.obj.emit12(SVM.CALL, this.address(call.proc));
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package fun;
+
+import fun.FunIR.Com;
+import fun.FunIR.Expr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An optimiser of Fun programs in the form of FunIR, run between
+ * lowering and code generation. It folds constant subexpressions,
+ * simplifies the identities x + 0, x - 0, x * 1, x / 1 and
+ * not not b, and drops the dead branches of constant conditions,
+ * returning a rewritten program.
+ */
+public class FunIROptimiser {
+
+    // Values are computed as the SVM would, so division by zero
+    // is never folded. An expression becomes a Const only if
+    // its value fits in a LOADC operand, but a larger value may
+    // still fold into the expression around it.
+    private int folded = 0;
+    private int simplified = 0;
+    private int deadBranches = 0;
+
+    /**
+     * An expression rewritten, with its value if it is constant.
+     */
+    private record Folded(Expr expr, Integer value) {
+    }
+
+    public String showOptimisations() {
+        // Return a summary of the optimisations found.
+        return this.folded + " expressions folded, " + this.simplified + " simplified, "
+                + this.deadBranches + " dead branches removed";
+    }
+
+    public FunIR.Program optimise(FunIR.Program program) {
+        FunIR.Procedure[] procs = new FunIR.Procedure[program.procs.length];
+        for (int i = 0; i < procs.length; i++) {
+            FunIR.Procedure proc = program.procs[i];
+            Expr[] locals = this.exprs(proc.locals);
+            Com[] body = this.seq(proc.body);
+            Expr result = (proc.result != null ? this.expr(proc.result) : null);
+            procs[i] = new FunIR.Procedure(proc.name, proc.hasParam, locals, body, result);
+        }
+        return new FunIR.Program(this.exprs(program.globals), procs, program.main);
+    }
+
+    private Expr expr(Expr e) {
+        return this.fold(e).expr;
+    }
+
+    private Expr[] exprs(Expr[] es) {
+        Expr[] result = new Expr[es.length];
+        for (int i = 0; i < es.length; i++) result[i] = (es[i] != null ? this.expr(es[i]) : null);
+        return result;
+    }
+
+    private Folded constant(Expr e, Type type, int value) {
+        // Return the value computed for the operator at the root
+        // of e, as a Const if it fits.
+        if (value != (short) value) return new Folded(e, value);
+        this.folded++;
+        return new Folded(new FunIR.Const(type, value), value);
+    }
+
+    private Folded fold(Expr e) {
+        if (e instanceof FunIR.Const c) return new Folded(c, c.value);
+        if (e instanceof FunIR.Binary b) return this.binary(b);
+        if (e instanceof FunIR.Not not) return this.not(not);
+        if (e instanceof FunIR.Call call && call.arg != null)
+            return new Folded(new FunIR.Call(call.type, call.proc, this.expr(call.arg)), null);
+        return new Folded(e, null);
+    }
+
+    private Folded binary(FunIR.Binary b) {
+        Folded l = this.fold(b.left);
+        Folded r = this.fold(b.right);
+        Integer v1 = l.value, v2 = r.value;
+        FunIR.Binary rebuilt = new FunIR.Binary(b.op, l.expr, r.expr);
+        if (v1 != null && v2 != null) {
+            if (b.op == FunIR.DIV && v2 == 0) return new Folded(rebuilt, null);
+            int value = switch (b.op) {
+                case FunIR.ADD -> v1 + v2;
+                case FunIR.SUB -> v1 - v2;
+                case FunIR.MUL -> v1 * v2;
+                case FunIR.DIV -> v1 / v2;
+                case FunIR.EQ -> (v1.equals(v2) ? 1 : 0);
+                case FunIR.LT -> (v1 < v2 ? 1 : 0);
+                default -> (v1 > v2 ? 1 : 0);
+            };
+            return this.constant(rebuilt, b.type, value);
+        }
+        // Simplify identities, keeping the other operand.
+        if (v2 != null && (b.op == FunIR.ADD || b.op == FunIR.SUB) && v2 == 0
+                || v2 != null && (b.op == FunIR.MUL || b.op == FunIR.DIV) && v2 == 1) {
+            this.simplified++;
+            return new Folded(l.expr, null);
+        }
+        if (v1 != null && (b.op == FunIR.ADD && v1 == 0 || b.op == FunIR.MUL && v1 == 1)) {
+            this.simplified++;
+            return new Folded(r.expr, null);
+        }
+        return new Folded(rebuilt, null);
+    }
+
+    private Folded not(FunIR.Not not) {
+        // A chain of n nots over one operand folds n times if
+        // the operand is constant, else simplifies n-1 times,
+        // leaving one not if n is odd.
+        int n = 0;
+        Expr operand = not;
+        while (operand instanceof FunIR.Not inner) {
+            operand = inner.operand;
+            n++;
+        }
+        Folded o = this.fold(operand);
+        if (o.value != null) {
+            this.folded += n;
+            int value = ((n % 2 == 1) == (o.value == 0) ? 1 : 0);
+            return new Folded(new FunIR.Const(Type.BOOL, value), value);
+        }
+        this.simplified += n - 1;
+        return new Folded(n % 2 == 0 ? o.expr : new FunIR.Not(o.expr), null);
+    }
+
+    private Com[] seq(Com[] coms) {
+        List<Com> result = new ArrayList<>(coms.length);
+        for (Com c : coms) this.com(c, result);
+        return result.toArray(new Com[0]);
+    }
+
+    private void com(Com c, List<Com> result) {
+        // Add to result the commands that c is rewritten to.
+        if (c instanceof FunIR.Assign assign) {
+            result.add(new FunIR.Assign(assign.target, this.expr(assign.value)));
+        } else if (c instanceof FunIR.ProcCall call) {
+            result.add(call.arg == null ? call
+                    : new FunIR.ProcCall(call.proc, this.expr(call.arg), call.tail));
+        } else if (c instanceof FunIR.If ifCom) {
+            Folded cond = this.fold(ifCom.cond);
+            Com[] thenCom = this.seq(ifCom.thenCom);
+            Com[] elseCom = (ifCom.elseCom != null ? this.seq(ifCom.elseCom) : null);
+            if (cond.value == null) {
+                result.add(new FunIR.If(cond.expr, thenCom, elseCom));
+                return;
+            }
+            // A constant condition leaves only one branch live.
+            Com[] live = (cond.value != 0 ? thenCom : elseCom);
+            if (cond.value == 0 || elseCom != null) this.deadBranches++;
+            if (live != null) result.addAll(List.of(live));
+        } else if (c instanceof FunIR.Loop loop) {
+            Folded exit = (loop.exit != null ? this.fold(loop.exit) : null);
+            Com[] body = this.seq(loop.body);
+            if (exit == null || exit.value == null) {
+                result.add(new FunIR.Loop(exit != null ? exit.expr : null, body));
+                return;
+            }
+            // The loop exits when its condition is true, so its
+            // body is dead if the condition is constantly true,
+            // and needs no test if it is constantly false.
+            if (exit.value != 0) this.deadBranches++;
+            else result.add(new FunIR.Loop(null, body));
+        } else if (c instanceof FunIR.Switch sw) {
+            Com[][] cases = new Com[sw.cases.length][];
+            for (int i = 0; i < cases.length; i++) cases[i] = this.seq(sw.cases[i]);
+            result.add(new FunIR.Switch(this.expr(sw.subject), sw.guards, sw.single, bounds(sw.below),
+                    bounds(sw.above), cases, this.seq(sw.defaultCom)));
+        }
+    }
+
+    private static Expr[] bounds(Expr[] bounds) {
+        // Return the bounds of the ranges of cases, folded where
+        // they fit. Folding a bound is not counted, as it is not
+        // an expression of the source.
+        Expr[] result = bounds.clone();
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] instanceof FunIR.Binary b && b.left instanceof FunIR.Const l
+                    && b.right instanceof FunIR.Const r) {
+                int value = (b.op == FunIR.ADD ? l.value + r.value : l.value - r.value);
+                if (value == (short) value) result[i] = new FunIR.Const(Type.INT, value);
+            }
+        }
+        return result;
+    }
+
+}
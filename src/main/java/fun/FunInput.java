@@ -0,0 +1,238 @@
+package fun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * A source of the integers read by a Fun program, parsed
+ * directly from a buffer of bytes. The integers are either
+ * text, separated by white space, or binary, 4 bytes each in
+ * little-endian order. The bytes come from a stream, through
+ * a buffer refilled as it empties, or from a file mapped into
+ * memory whole.
+ */
+public abstract class FunInput {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Source source;
+    protected final ByteBuffer buf;     // bytes not yet parsed, from position to limit
+
+    private FunInput(Source source) {
+        this.source = source;
+        this.buf = source.buffer();
+    }
+
+    protected boolean fill() {
+        // Move any bytes not yet parsed to the start of the
+        // buffer, and add more after them. Return false if
+        // there are no more bytes.
+        return this.source.fill(this.buf);
+    }
+
+    // Return the next integer. Throw NoSuchElementException
+    // if the input is exhausted, or InputMismatchException if
+    // the next integer is malformed.
+    public abstract int nextInt();
+
+    // Return true if the next integer is already buffered, so
+    // that reading it will not wait for the source.
+    public abstract boolean ready();
+
+    public int[] toArray() {
+        // Return all the integers left in the input. Throw
+        // InputMismatchException, naming the source and the
+        // integer, if one is malformed.
+        int[] values = new int[16];
+        int n = 0;
+        while (true) {
+            int value;
+            try {
+                value = this.nextInt();
+            } catch (InputMismatchException x) {
+                // A subclass of NoSuchElementException, but not
+                // the end of the input.
+                String message = this.source.name() + ": integer " + (n + 1) + " of the input is malformed";
+                throw new InputMismatchException(x.getMessage() != null ? message + ": " + x.getMessage() : message);
+            } catch (NoSuchElementException x) {
+                return Arrays.copyOf(values, n);
+            }
+            if (n == values.length) values = Arrays.copyOf(values, 2 * n);
+            values[n++] = value;
+        }
+    }
+
+    public static FunInput text(InputStream in) {
+        return new Text(new StreamSource(in));
+    }
+
+    public static FunInput binary(InputStream in) {
+        return new Binary(new StreamSource(in));
+    }
+
+    public static FunInput map(Path file, boolean binary) throws IOException {
+        // Map the file into memory, for parsing as text or
+        // binary integers.
+        Source source = new MappedSource(file);
+        return (binary ? new Binary(source) : new Text(source));
+    }
+
+    // SOURCES OF BYTES
+    private interface Source {
+        String name();
+
+        ByteBuffer buffer();
+
+        boolean fill(ByteBuffer buf);
+    }
+
+    private static final class StreamSource implements Source {
+
+        private final InputStream in;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+
+        StreamSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public String name() {
+            return "input stream";
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return this.buf;
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buf) {
+            // Read at most one buffer's worth, so that reads
+            // from an interactive stream do not wait for more
+            // than is already available.
+            buf.compact();
+            try {
+                int n = this.in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (n > 0) buf.position(buf.position() + n);
+                return n > 0;
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            } finally {
+                buf.flip();
+            }
+        }
+
+    }
+
+    private static final class MappedSource implements Source {
+
+        private final Path file;
+        private final ByteBuffer buf;
+
+        MappedSource(Path file) throws IOException {
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) throw new IOException("input file too large to map: " + file);
+                this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        @Override
+        public String name() {
+            return this.file.toString();
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return this.buf;
+        }
+
+        @Override
+        public boolean fill(ByteBuffer buf) {
+            // The whole file is already in the buffer.
+            return false;
+        }
+
+    }
+
+    // PARSERS
+    private static final class Text extends FunInput {
+
+        Text(Source source) {
+            super(source);
+        }
+
+        private static boolean isSpace(int b) {
+            return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f';
+        }
+
+        @Override
+        public boolean ready() {
+            // Skip buffered white space, then look for a digit.
+            while (this.buf.hasRemaining() && isSpace(this.buf.get(this.buf.position())))
+                this.buf.get();
+            return this.buf.hasRemaining();
+        }
+
+        private int next() {
+            // Return the next byte, or -1 at the end of input.
+            if (!this.buf.hasRemaining() && !this.fill()) return -1;
+            return this.buf.get() & 0xFF;
+        }
+
+        @Override
+        public int nextInt() {
+            int b = this.next();
+            while (isSpace(b)) b = this.next();
+            if (b < 0) throw new NoSuchElementException();
+            boolean negative = (b == '-');
+            if (b == '-' || b == '+') b = this.next();
+            if (b < '0' || b > '9') throw new InputMismatchException();
+            long n = 0;
+            do {
+                n = 10 * n + (b - '0');
+                if (n > Integer.MAX_VALUE + 1L) throw new InputMismatchException("integer too large");
+                b = this.next();
+            } while (b >= '0' && b <= '9');
+            if (b >= 0 && !isSpace(b)) throw new InputMismatchException();
+            if (negative) n = -n;
+            if (n > Integer.MAX_VALUE) throw new InputMismatchException("integer too large");
+            return (int) n;
+        }
+
+    }
+
+    private static final class Binary extends FunInput {
+
+        Binary(Source source) {
+            super(source);
+        }
+
+        @Override
+        public boolean ready() {
+            return this.buf.remaining() >= Integer.BYTES;
+        }
+
+        @Override
+        public int nextInt() {
+            while (this.buf.remaining() < Integer.BYTES) {
+                if (!this.fill()) {
+                    if (this.buf.hasRemaining()) throw new InputMismatchException("truncated integer");
+                    throw new NoSuchElementException();
+                }
+            }
+            return this.buf.getInt();
+        }
+
+    }
+
+}
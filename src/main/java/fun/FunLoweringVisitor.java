@@ -0,0 +1,325 @@
+package fun;
+
+import ast.FunParser;
+import ast.FunVisitor;
+import fun.FunIR.Com;
+import fun.FunIR.Expr;
+import org.antlr.v4.runtime.tree.AbstractParseTreeVisitor;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A visitor that lowers a checked Fun program to the compact
+ * form of FunIR, in one walk of the parse tree. Identifiers are
+ * resolved as they are met, with the scopes of the checker: a
+ * local variable hides a global one, a variable is declared
+ * after its initialiser, and a procedure from its own start.
+ */
+public class FunLoweringVisitor extends AbstractParseTreeVisitor<Object> implements FunVisitor<Object> {
+
+    // Each visit of an expression returns its Expr node, of a
+    // command its Com node, and of a sequence its Com array.
+    // Declarations of variables return their initialisers, and
+    // types their Type.
+    private final SymbolTable<FunIR.Var> varTable = new SymbolTable<>();
+    private final Map<String, Integer> procIndexes = new HashMap<>();
+    private final Map<String, Type> resultTypes = new HashMap<>();
+    private final List<FunIR.Procedure> procs = new ArrayList<>();
+    private final ParseTreeProperty<SwitchGuards> switchGuards;
+    private FunIR.Program program;
+    private int globalSlot = 0;
+    private int localSlot = 0;
+    private boolean local = false;
+
+    public FunLoweringVisitor(ParseTreeProperty<SwitchGuards> switchGuards) {
+        // The switch guards found by contextual analysis let
+        // switch commands be encoded with jump tables.
+        this.switchGuards = switchGuards;
+    }
+
+    public FunIR.Program getProgram() {
+        return this.program;
+    }
+
+    private void predefine() {
+        // Add predefined procedures to the procedure table.
+        this.procIndexes.put("read", FunIR.READ);
+        this.resultTypes.put("read", Type.INT);
+        this.procIndexes.put("write", FunIR.WRITE);
+        this.resultTypes.put("write", Type.VOID);
+    }
+
+    private Expr expr(FunParser.ExprContext ctx) {
+        return (Expr) this.visit(ctx);
+    }
+
+    private Com[] seq(FunParser.Seq_comContext ctx) {
+        return (Com[]) this.visit(ctx);
+    }
+
+    private static Expr literal(FunParser.LitContext lit) {
+        // Return the node for a literal. The checker has found
+        // that a number fits in an SVM LOADC operand.
+        if (lit instanceof FunParser.FalseContext) return new FunIR.Const(Type.BOOL, 0);
+        if (lit instanceof FunParser.TrueContext) return new FunIR.Const(Type.BOOL, 1);
+        return new FunIR.Const(Type.INT, Integer.parseInt(((FunParser.NumContext) lit).NUM().getText()));
+    }
+
+    private static Expr bound(FunParser.LitContext lit, int delta) {
+        // Return the node for lit+delta, a value just outside a
+        // range of a case.
+        return new FunIR.Binary(delta < 0 ? FunIR.SUB : FunIR.ADD, literal(lit), new FunIR.Const(Type.INT, 1));
+    }
+
+    private FunIR.Procedure procedure(String id, Type result, FunParser.Formal_declContext fd,
+                                      List<FunParser.Var_declContext> var_decl, FunParser.Seq_comContext body,
+                                      FunParser.ExprContext resultExpr) {
+        // Lower a procedure, declaring it first so that its body
+        // may call it.
+        int index = this.procs.size();
+        this.procs.add(null);
+        this.procIndexes.put(id, index);
+        this.resultTypes.put(id, result);
+        this.varTable.enterLocalScope();
+        this.local = true;
+        this.localSlot = 0;
+
+        FunParser.FormalContext formal = (FunParser.FormalContext) fd;
+        boolean hasParam = (formal.type() != null);
+        if (hasParam)
+            this.varTable.put(formal.ID().getText(),
+                    new FunIR.Var((Type) this.visit(formal.type()), false, this.localSlot++));
+        Expr[] locals = new Expr[var_decl.size()];
+        for (int i = 0; i < locals.length; i++) locals[i] = (Expr) this.visit(var_decl.get(i));
+        Com[] coms = this.seq(body);
+        Expr resultNode = null;
+        if (resultExpr != null) resultNode = this.expr(resultExpr);
+        else coms = markTailCalls(coms);
+
+        this.varTable.exitLocalScope();
+        this.local = false;
+        FunIR.Procedure proc = new FunIR.Procedure(id, hasParam, locals, coms, resultNode);
+        this.procs.set(index, proc);
+        return proc;
+    }
+
+    private static Com[] markTailCalls(Com[] seq) {
+        // Return seq, the body of a proc, with its calls in tail
+        // position marked: a call that is its last command, or
+        // in tail position within the branches of an if or
+        // switch that is its last command.
+        if (seq.length == 0) return seq;
+        Com last = seq[seq.length - 1];
+        Com marked = last;
+        if (last instanceof FunIR.ProcCall call) {
+            marked = new FunIR.ProcCall(call.proc, call.arg, true);
+        } else if (last instanceof FunIR.If ifCom) {
+            marked = new FunIR.If(ifCom.cond, markTailCalls(ifCom.thenCom),
+                    (ifCom.elseCom != null ? markTailCalls(ifCom.elseCom) : null));
+        } else if (last instanceof FunIR.Switch sw) {
+            Com[][] cases = new Com[sw.cases.length][];
+            for (int i = 0; i < cases.length; i++) cases[i] = markTailCalls(sw.cases[i]);
+            marked = new FunIR.Switch(sw.subject, sw.guards, sw.single, sw.below, sw.above, cases,
+                    markTailCalls(sw.defaultCom));
+        }
+        if (marked == last) return seq;
+        Com[] result = seq.clone();
+        result[result.length - 1] = marked;
+        return result;
+    }
+
+    @Override
+    public Object visitProg(FunParser.ProgContext ctx) {
+        this.predefine();
+        Expr[] globals = new Expr[ctx.var_decl().size()];
+        for (int i = 0; i < globals.length; i++) globals[i] = (Expr) this.visit(ctx.var_decl(i));
+        for (FunParser.Proc_declContext pd : ctx.proc_decl()) this.visit(pd);
+        this.program = new FunIR.Program(globals, this.procs.toArray(new FunIR.Procedure[0]),
+                this.procIndexes.get("main"));
+        return null;
+    }
+
+    @Override
+    public Object visitProc(FunParser.ProcContext ctx) {
+        return this.procedure(ctx.ID().getText(), Type.VOID, ctx.formal_decl(), ctx.var_decl(), ctx.seq_com(),
+                null);
+    }
+
+    @Override
+    public Object visitFunc(FunParser.FuncContext ctx) {
+        return this.procedure(ctx.ID().getText(), (Type) this.visit(ctx.type()), ctx.formal_decl(),
+                ctx.var_decl(), ctx.seq_com(), ctx.expr());
+    }
+
+    @Override
+    public Object visitFormal(FunParser.FormalContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Object visitVar(FunParser.VarContext ctx) {
+        // The initialiser is lowered before the variable is
+        // declared, as it cannot refer to the variable.
+        Expr init = this.expr(ctx.expr());
+        Type type = (Type) this.visit(ctx.type());
+        int slot = (this.local ? this.localSlot++ : this.globalSlot++);
+        this.varTable.put(ctx.ID().getText(), new FunIR.Var(type, !this.local, slot));
+        return init;
+    }
+
+    @Override
+    public Object visitBool(FunParser.BoolContext ctx) {
+        return Type.BOOL;
+    }
+
+    @Override
+    public Object visitInt(FunParser.IntContext ctx) {
+        return Type.INT;
+    }
+
+    @Override
+    public Object visitAssn(FunParser.AssnContext ctx) {
+        return new FunIR.Assign(this.varTable.get(ctx.ID().getText()), this.expr(ctx.expr()));
+    }
+
+    @Override
+    public Object visitProccall(FunParser.ProccallContext ctx) {
+        return new FunIR.ProcCall(this.procIndexes.get(ctx.ID().getText()), (Expr) this.visit(ctx.actual()),
+                false);
+    }
+
+    @Override
+    public Object visitIf(FunParser.IfContext ctx) {
+        return new FunIR.If(this.expr(ctx.expr()), this.seq(ctx.c1), (ctx.c2 != null ? this.seq(ctx.c2) : null));
+    }
+
+    @Override
+    public Object visitWhile(FunParser.WhileContext ctx) {
+        return new FunIR.Loop(this.expr(ctx.expr()), this.seq(ctx.seq_com()));
+    }
+
+    // EXTENSION
+    @Override
+    public Object visitRepeat_until(FunParser.Repeat_untilContext ctx) {
+        return new FunIR.Loop(this.expr(ctx.expr()), this.seq(ctx.seq_com()));
+    }
+
+    @Override
+    public Object visitSwitch(FunParser.SwitchContext ctx) {
+        Expr subject = this.expr(ctx.expr());
+        int n = ctx.sw_case().size();
+        Expr[] single = new Expr[n], below = new Expr[n], above = new Expr[n];
+        Com[][] cases = new Com[n][];
+        for (int i = 0; i < n; i++) {
+            FunParser.CaseContext c = (FunParser.CaseContext) ctx.sw_case(i);
+            if (c.range() == null) {
+                single[i] = literal(c.lit());
+            } else {
+                below[i] = bound(c.range().n1, -1);
+                above[i] = bound(c.range().n2, 1);
+            }
+            cases[i] = this.seq(c.seq_com());
+        }
+        return new FunIR.Switch(subject, this.switchGuards.get(ctx), single, below, above, cases,
+                (Com[]) this.visit(ctx.sw_default()));
+    }
+
+    @Override
+    public Object visitCase(FunParser.CaseContext ctx) {
+        return this.seq(ctx.seq_com());
+    }
+
+    @Override
+    public Object visitDefault(FunParser.DefaultContext ctx) {
+        return this.seq(ctx.seq_com());
+    }
+
+    @Override
+    public Object visitRange(FunParser.RangeContext ctx) {
+        return null;
+    }
+
+    @Override
+    public Object visitLiteral(FunParser.LiteralContext ctx) {
+        return literal(ctx.lit());
+    }
+    // END OF EXTENSION
+
+    @Override
+    public Object visitSeq(FunParser.SeqContext ctx) {
+        Com[] coms = new Com[ctx.com().size()];
+        for (int i = 0; i < coms.length; i++) coms[i] = (Com) this.visit(ctx.com(i));
+        return coms;
+    }
+
+    @Override
+    public Object visitExpr(FunParser.ExprContext ctx) {
+        Expr e1 = (Expr) this.visit(ctx.e1);
+        if (ctx.e2 == null) return e1;
+        int op = switch (ctx.op.getType()) {
+            case FunParser.EQ -> FunIR.EQ;
+            case FunParser.LT -> FunIR.LT;
+            default -> FunIR.GT;
+        };
+        return new FunIR.Binary(op, e1, (Expr) this.visit(ctx.e2));
+    }
+
+    @Override
+    public Object visitSec_expr(FunParser.Sec_exprContext ctx) {
+        Expr e1 = (Expr) this.visit(ctx.e1);
+        if (ctx.e2 == null) return e1;
+        int op = switch (ctx.op.getType()) {
+            case FunParser.PLUS -> FunIR.ADD;
+            case FunParser.MINUS -> FunIR.SUB;
+            case FunParser.TIMES -> FunIR.MUL;
+            default -> FunIR.DIV;
+        };
+        return new FunIR.Binary(op, e1, (Expr) this.visit(ctx.e2));
+    }
+
+    @Override
+    public Object visitFalse(FunParser.FalseContext ctx) {
+        return literal(ctx);
+    }
+
+    @Override
+    public Object visitTrue(FunParser.TrueContext ctx) {
+        return literal(ctx);
+    }
+
+    @Override
+    public Object visitNum(FunParser.NumContext ctx) {
+        return literal(ctx);
+    }
+
+    @Override
+    public Object visitId(FunParser.IdContext ctx) {
+        return this.varTable.get(ctx.ID().getText());
+    }
+
+    @Override
+    public Object visitFunccall(FunParser.FunccallContext ctx) {
+        String id = ctx.ID().getText();
+        return new FunIR.Call(this.resultTypes.get(id), this.procIndexes.get(id), (Expr) this.visit(ctx.actual()));
+    }
+
+    @Override
+    public Object visitNot(FunParser.NotContext ctx) {
+        return new FunIR.Not((Expr) this.visit(ctx.prim_expr()));
+    }
+
+    @Override
+    public Object visitParens(FunParser.ParensContext ctx) {
+        return this.visit(ctx.expr());
+    }
+
+    @Override
+    public Object visitActual(FunParser.ActualContext ctx) {
+        return (ctx.expr() != null ? this.expr(ctx.expr()) : null);
+    }
+
+}
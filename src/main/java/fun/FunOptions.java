@@ -0,0 +1,132 @@
+package fun;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options given on the command line of the Fun driver.
+ * Each option is a leading argument starting with '-';
+ * the first other argument is the source file name.
+ */
+public class FunOptions {
+
+    public boolean tracing = true;      // print each instruction executed
+    public boolean fusing = true;       // decode superinstructions
+    public boolean folding = true;      // fold and simplify expressions
+    public boolean peephole = true;     // apply the peephole optimiser
+    public boolean stats = false;       // print execution statistics
+    public boolean caching = false;     // cache the stack top while interpreting
+    public boolean compiling = false;   // compile procedures to JVM code
+    public boolean registers = false;   // generate code for the register VM
+    public boolean closures = false;    // compile to closures and run them
+    public boolean tiering = false;     // compile hot procedures and loops
+    public int callThreshold = 100;     // calls before compiling a procedure
+    public int loopThreshold = 1000;    // iterations before compiling a loop
+    public boolean inlining = true;     // inline calls of small procedures
+    public int inlineSize = 32;         // largest procedure inlined, in bytes
+    public int inlineGrowth = 512;      // most bytes inlined into one procedure
+    public int outputBatch = 4096;      // writes batched before flushing output
+    public String inputFile;            // file mapped for read, else standard input
+    public boolean binaryInput = false; // read 4-byte little-endian integers
+    public int jobs = Runtime.getRuntime().availableProcessors();  // jobs run at once by FunRunner
+    public int slice = 10000;           // calls and loop iterations per FunScheduler slice
+    public String objectFile;           // .svm file to write the object code to
+    public String cacheDir;             // directory of the compilation cache, if used
+    public long cacheLimit = 64L << 20; // most bytes kept in the compilation cache
+    public String filename;
+    public final List<String> inputs = new ArrayList<>();   // input files after the source file
+
+    public static FunOptions parse(String[] args) throws FunException {
+        // Parse the program arguments into a set of options.
+        // Throw FunException if an option is unknown or the
+        // source file name is missing.
+        FunOptions options = new FunOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                if (options.filename == null) options.filename = arg;
+                else options.inputs.add(arg);
+                continue;
+            }
+            if (arg.startsWith("-calls=")) {
+                options.callThreshold = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-loops=")) {
+                options.loopThreshold = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-inline=")) {
+                options.inlineSize = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-growth=")) {
+                options.inlineGrowth = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-o=")) {
+                options.objectFile = arg.substring(arg.indexOf('=') + 1);
+                continue;
+            }
+            if (arg.startsWith("-cache=")) {
+                options.cacheDir = arg.substring(arg.indexOf('=') + 1);
+                continue;
+            }
+            if (arg.startsWith("-cachesize=")) {
+                options.cacheLimit = 1024L * threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-input=")) {
+                options.inputFile = arg.substring(arg.indexOf('=') + 1);
+                continue;
+            }
+            if (arg.startsWith("-jobs=")) {
+                options.jobs = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-slice=")) {
+                options.slice = threshold(arg);
+                continue;
+            }
+            if (arg.startsWith("-batch=")) {
+                options.outputBatch = threshold(arg);
+                continue;
+            }
+            switch (arg) {
+                case "-trace" -> options.tracing = true;
+                case "-notrace" -> options.tracing = false;
+                case "-fuse" -> options.fusing = true;
+                case "-nofuse" -> options.fusing = false;
+                case "-fold" -> options.folding = true;
+                case "-nofold" -> options.folding = false;
+                case "-peep" -> options.peephole = true;
+                case "-nopeep" -> options.peephole = false;
+                case "-inline" -> options.inlining = true;
+                case "-noinline" -> options.inlining = false;
+                case "-stats" -> options.stats = true;
+                case "-tos" -> options.caching = true;
+                case "-notos" -> options.caching = false;
+                case "-jit" -> options.compiling = true;
+                case "-rvm" -> options.registers = true;
+                case "-closures" -> options.closures = true;
+                case "-binary" -> options.binaryInput = true;
+                case "-tiered" -> options.tiering = true;
+                case "-cache" -> options.cacheDir = FunCompileCache.defaultDirectory().toString();
+                default -> throw new FunException();
+            }
+        }
+        if (options.filename == null) throw new FunException();
+        return options;
+    }
+
+    private static int threshold(String arg) throws FunException {
+        // Return the positive number following '=' in arg.
+        try {
+            int n = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            if (n > 0) return n;
+        } catch (NumberFormatException x) {
+            // fall through
+        }
+        throw new FunException();
+    }
+
+}
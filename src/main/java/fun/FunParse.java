@@ -1,9 +1,6 @@
 package fun;
 
-import ast.FunLexer;
-import ast.FunParser;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.io.PrintStream;
@@ -20,14 +17,25 @@ public class FunParse {
     private static final PrintStream out = System.out;
 
     public static void main(String[] args) {
-        // Compile a Fun source program to SVM code,
-        // then interpret it if it compiles successfully.
-        // The source file name must be given as the
-        // first program argument.
+        // Parse each Fun source program given as a program
+        // argument, reporting its syntax errors and the time
+        // taken. Later files are parsed by the warmed parser.
         try {
             if (args.length == 0) throw new FunException();
 
-            ParseTree tree = syntacticAnalyse(args[0]);
+            int failed = 0;
+            for (String filename : args) {
+                try {
+                    syntacticAnalyse(filename);
+                } catch (FunException x) {
+                    failed++;
+                }
+            }
+            if (args.length > 1) {
+                out.println();
+                out.println(FunFrontEnd.showStats());
+            }
+            if (failed > 0) throw new FunException();
         } catch (FunException x) {
             out.println("Compilation failed");
         } catch (Exception x) {
@@ -37,22 +45,19 @@ public class FunParse {
 
     private static ParseTree syntacticAnalyse(String filename) throws Exception {
         // Perform syntactic analysis of a Fun source program.
-        // Print any error messages.
+        // Print any error messages, and the time taken.
         // Return a syntax tree representation of the Fun program.
         out.println();
-        out.println("Syntactic analysis ...");
+        out.println("Syntactic analysis of " + filename + " ...");
 
-        FunLexer lexer = new FunLexer(CharStreams.fromFileName(filename));
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        FunParser parser = new FunParser(tokens);
-        ParseTree tree = parser.program();
+        FunFrontEnd.Parse parse = FunFrontEnd.parse(CharStreams.fromFileName(filename));
 
-        int errors = parser.getNumberOfSyntaxErrors();
-        out.println(errors + " syntactic errors");
+        out.println(parse.errors + " syntactic errors");
+        out.println(parse.showTime());
 
-        if (errors > 0) throw new FunException();
+        if (parse.errors > 0) throw new FunException();
 
-        return tree;
+        return parse.tree;
     }
 
 }
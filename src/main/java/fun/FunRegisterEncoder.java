@@ -0,0 +1,321 @@
+package fun;
+
+import fun.FunIR.Com;
+import fun.FunIR.Expr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Code generation for Fun, from the FunIR form of a checked and
+ * optionally optimised program to register-based code for the
+ * RVM. Variables are in the registers or global words of their
+ * slots, and the registers above a procedure's variables hold
+ * the temporaries of expressions.
+ */
+public class FunRegisterEncoder {
+
+    // Encoding an expression returns the register holding its
+    // value, which may be the register of a variable read by
+    // the expression. If dest is set when an expression is
+    // encoded, its value goes to register dest.
+    private final RVM obj = new RVM();
+    private int[] procAddrs;            // code address of each procedure encoded
+    private int globalVarAddr = 0;
+    private int localVarAddr = 0;       // first register after the variables
+    private int temp = 0;               // first free register
+    private int dest = -1;              // register for the next value, or -1
+
+    public RVM getRVM() {
+        return this.obj;
+    }
+
+    private int takeDest() {
+        // Return dest, or -1 if not set, and clear it.
+        int d = this.dest;
+        this.dest = -1;
+        return d;
+    }
+
+    private int result(int d, int mark) {
+        // Free the temporaries from mark up, then return the
+        // register for a result: d if set, else a temporary.
+        this.temp = mark;
+        return (d >= 0 ? d : this.temp++);
+    }
+
+    private static int register(FunIR.Var var) {
+        // Return the register of a local variable, allowing 2
+        // words for link data.
+        return 2 + var.slot;
+    }
+
+    private int value(Expr e) {
+        // Encode e and return the register holding its value.
+        this.dest = -1;
+        return this.encode(e);
+    }
+
+    private void valueInto(Expr e, int d) {
+        // Encode e, leaving its value in register d.
+        this.dest = d;
+        int r = this.encode(e);
+        if (r != d) this.obj.emit(RVM.MOVE, d, r);
+    }
+
+    private static int constant(Expr bound) {
+        // Return the value of the bound of a range, a Const or
+        // a sum or difference of Consts.
+        if (bound instanceof FunIR.Const c) return c.value;
+        FunIR.Binary b = (FunIR.Binary) bound;
+        int left = constant(b.left), right = constant(b.right);
+        return (b.op == FunIR.ADD ? left + right : left - right);
+    }
+
+    public void encode(FunIR.Program program) {
+        this.procAddrs = new int[program.procs.length];
+        for (Expr init : program.globals) {
+            this.temp = 0;
+            this.obj.emit(RVM.PUTG, this.globalVarAddr++, this.value(init));
+        }
+
+        int callAddr = this.obj.emit(RVM.CALL, 0, 0);
+        this.obj.emit(RVM.HALT);
+
+        for (int i = 0; i < program.procs.length; i++) this.encodeProcedure(i, program.procs[i]);
+
+        this.obj.patch(callAddr, this.procAddrs[program.main]);
+        this.obj.setGlobals(this.globalVarAddr);
+    }
+
+    private void encodeProcedure(int index, FunIR.Procedure proc) {
+        this.procAddrs[index] = this.obj.currentOffset();
+        // ... allows 2 words for link data. The caller leaves the
+        // argument in register 2.
+        this.localVarAddr = (proc.hasParam ? 3 : 2);
+        for (Expr init : proc.locals) {
+            this.temp = this.localVarAddr + 1;
+            this.valueInto(init, this.localVarAddr++);
+        }
+        this.encodeSeq(proc.body);
+
+        if (proc.result == null) {
+            this.obj.emit(RVM.RETURN);
+            return;
+        }
+        this.temp = this.localVarAddr;
+        // A call as the result is a tail call, reusing this frame.
+        if (proc.result instanceof FunIR.Call call && call.proc >= 0)
+            this.encodeCall(call.arg, call.proc, true);
+        else
+            this.obj.emit(RVM.RETV, this.value(proc.result));
+    }
+
+    private int encodeCall(Expr arg, int proc, boolean tail) {
+        // Encode a call with its frame at the first free register
+        // b, evaluating the argument into register b+2. Return b,
+        // which then holds any result. A tail call instead reuses
+        // the current frame.
+        int b = this.temp;
+        if (arg != null) {
+            this.temp = b + 3;
+            this.valueInto(arg, b + 2);
+        }
+        this.obj.emit(tail ? RVM.TCALL : RVM.CALL, b, this.procAddrs[proc]);
+        this.temp = b + 1;
+        return b;
+    }
+
+    private int encodeBranch(Expr cond, boolean jumpIfTrue) {
+        // Encode a jump, taken when the condition cond is
+        // jumpIfTrue, and return its address for patching. A
+        // comparison becomes a single compare-and-branch.
+        int mark = this.temp;
+        while (cond instanceof FunIR.Not not) {
+            cond = not.operand;
+            jumpIfTrue = !jumpIfTrue;
+        }
+
+        int addr;
+        if (cond instanceof FunIR.Binary b && b.isComparison()) {
+            int x = this.value(b.left);
+            int y = this.value(b.right);
+            int jump = switch (b.op) {
+                case FunIR.EQ -> jumpIfTrue ? RVM.JEQ : RVM.JNE;
+                case FunIR.LT -> jumpIfTrue ? RVM.JLT : RVM.JGE;
+                default -> jumpIfTrue ? RVM.JGT : RVM.JLE;
+            };
+            addr = this.obj.emit(jump, x, y, 0);
+        } else {
+            int r = this.value(cond);
+            addr = this.obj.emit(jumpIfTrue ? RVM.JUMPT : RVM.JUMPF, r, 0);
+        }
+        this.temp = mark;
+        return addr;
+    }
+
+    // COMMANDS
+
+    private void encodeSeq(Com[] coms) {
+        for (Com c : coms) {
+            this.temp = this.localVarAddr;
+            this.encodeCom(c);
+        }
+    }
+
+    private void encodeCom(Com c) {
+        if (c instanceof FunIR.Assign assign) {
+            FunIR.Var var = assign.target;
+            if (var.global) this.obj.emit(RVM.PUTG, var.slot, this.value(assign.value));
+            else this.valueInto(assign.value, register(var));
+        } else if (c instanceof FunIR.ProcCall call) {
+            if (call.proc == FunIR.WRITE) this.obj.emit(RVM.WRITE, this.value(call.arg));
+            else this.encodeCall(call.arg, call.proc, call.tail);
+        } else if (c instanceof FunIR.If ifCom) {
+            this.encodeIf(ifCom);
+        } else if (c instanceof FunIR.Loop loop) {
+            this.encodeLoop(loop);
+        } else if (c instanceof FunIR.Switch sw) {
+            this.encodeSwitch(sw);
+        }
+    }
+
+    private void encodeIf(FunIR.If ifCom) {
+        int condAddr = this.encodeBranch(ifCom.cond, false);
+        this.encodeSeq(ifCom.thenCom);
+        if (ifCom.elseCom == null) {
+            this.obj.patch(condAddr, this.obj.currentOffset());
+        } else {
+            int jumpAddr = this.obj.emit(RVM.JUMP, 0);
+            this.obj.patch(condAddr, this.obj.currentOffset());
+            this.encodeSeq(ifCom.elseCom);
+            this.obj.patch(jumpAddr, this.obj.currentOffset());
+        }
+    }
+
+    private void encodeLoop(FunIR.Loop loop) {
+        // Encode a loop that exits as soon as its condition is
+        // true, testing it at the bottom, as the SVM encoder does.
+        if (loop.exit == null) {
+            int bodyAddr = this.obj.currentOffset();
+            this.encodeSeq(loop.body);
+            this.obj.emit(RVM.JUMP, bodyAddr);
+            return;
+        }
+        int entryAddr = this.obj.emit(RVM.JUMP, 0);
+        int bodyAddr = this.obj.currentOffset();
+        this.encodeSeq(loop.body);
+        this.obj.patch(entryAddr, this.obj.currentOffset());
+        this.obj.patch(this.encodeBranch(loop.exit, false), bodyAddr);
+    }
+
+    /*
+     *               CODE TEMPLATE FOR SWITCH
+     *  JIN    r lo hi case              # for each case, in order
+     *  <command body of default>
+     *  JUMP   end
+     *  <command body of case>           # for each case
+     *  JUMP   end
+     *                                   # end address
+     */
+    private void encodeSwitch(FunIR.Switch sw) {
+        int r = this.value(sw.subject);
+        List<Integer> guards = new ArrayList<>();
+        for (int i = 0; i < sw.cases.length; i++) {
+            int lo, hi;
+            if (sw.single[i] != null) {
+                lo = hi = constant(sw.single[i]);
+            } else {
+                lo = constant(sw.below[i]) + 1;
+                hi = constant(sw.above[i]) - 1;
+            }
+            guards.add(this.obj.emit(RVM.JIN, r, lo, hi, 0));
+        }
+        this.encodeSeq(sw.defaultCom);
+        List<Integer> exits = new ArrayList<>();
+        exits.add(this.obj.emit(RVM.JUMP, 0));
+        for (int i = 0; i < guards.size(); i++) {
+            this.obj.patch(guards.get(i), this.obj.currentOffset());
+            this.encodeSeq(sw.cases[i]);
+            exits.add(this.obj.emit(RVM.JUMP, 0));
+        }
+        for (int exit : exits) this.obj.patch(exit, this.obj.currentOffset());
+    }
+
+    // EXPRESSIONS
+
+    private int encode(Expr e) {
+        if (e instanceof FunIR.Const c) {
+            int d = this.result(this.takeDest(), this.temp);
+            this.obj.emit(RVM.CONST, d, c.value);
+            return d;
+        } else if (e instanceof FunIR.Var var) {
+            return this.encodeVar(var);
+        } else if (e instanceof FunIR.Binary b) {
+            return this.encodeBinary(b);
+        } else if (e instanceof FunIR.Not not) {
+            int d = this.takeDest();
+            int mark = this.temp;
+            int a = this.value(not.operand);
+            d = this.result(d, mark);
+            this.obj.emit(RVM.NOT, d, a);
+            return d;
+        } else {
+            return this.encodeFuncCall((FunIR.Call) e);
+        }
+    }
+
+    private int encodeVar(FunIR.Var var) {
+        int d = this.takeDest();
+        if (!var.global) {
+            // A local is read in its own register.
+            int r = register(var);
+            if (d < 0 || d == r) return r;
+            this.obj.emit(RVM.MOVE, d, r);
+            return d;
+        }
+        d = this.result(d, this.temp);
+        this.obj.emit(RVM.GETG, d, var.slot);
+        return d;
+    }
+
+    private int encodeBinary(FunIR.Binary b) {
+        int d = this.takeDest();
+        int mark = this.temp;
+        int x = this.value(b.left);
+        if (b.right instanceof FunIR.Const k && (b.op == FunIR.ADD || b.op == FunIR.SUB)) {
+            // Add a constant without a register for it.
+            d = this.result(d, mark);
+            this.obj.emit(RVM.ADDI, d, x, b.op == FunIR.ADD ? k.value : -k.value);
+            return d;
+        }
+        int y = this.value(b.right);
+        d = this.result(d, mark);
+        int op = switch (b.op) {
+            case FunIR.ADD -> RVM.ADD;
+            case FunIR.SUB -> RVM.SUB;
+            case FunIR.MUL -> RVM.MUL;
+            case FunIR.DIV -> RVM.DIV;
+            case FunIR.EQ -> RVM.CMPEQ;
+            case FunIR.LT -> RVM.CMPLT;
+            default -> RVM.CMPGT;
+        };
+        this.obj.emit(op, d, x, y);
+        return d;
+    }
+
+    private int encodeFuncCall(FunIR.Call call) {
+        int d = this.takeDest();
+        if (call.proc == FunIR.READ) {
+            d = this.result(d, this.temp);
+            this.obj.emit(RVM.READ, d);
+            return d;
+        }
+        int b = this.encodeCall(call.arg, call.proc, false);
+        if (d < 0 || d == b) return b;
+        this.obj.emit(RVM.MOVE, d, b);
+        this.temp = b;
+        return d;
+    }
+
+}
@@ -1,12 +1,12 @@
 package fun;
 
-import ast.FunLexer;
-import ast.FunParser;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * Driver for the Fun compiler and SVM interpreter.
@@ -15,20 +15,41 @@ import java.io.PrintStream;
  */
 public class FunRun {
 
-    private static final boolean tracing = true;
-
     private static final PrintStream out = System.out;
 
     public static void main(String[] args) {
         // Compile a Fun source program to SVM code,
         // then interpret it if it compiles successfully.
-        // The source file name must be given as the
-        // first program argument.
+        // The source file name must be given as a
+        // program argument, optionally preceded by options.
         try {
-            if (args.length == 0) throw new FunException();
-            SVM objProg = compile(args[0]);
+            FunOptions options = FunOptions.parse(args);
+            if (options.registers) {
+                RVM regProg = compileRegisters(options);
+                out.println("Interpretation ...");
+                regProg.interpret(channels(options), options.tracing);
+                return;
+            }
+            if (options.closures) {
+                ClosureProgram closureProg = compileClosures(options);
+                out.println("Interpretation ...");
+                closureProg.run(channels(options));
+                return;
+            }
+            SVM objProg = compile(options);
+            objProg.setFusing(options.fusing);
+            objProg.setCaching(options.caching);
+            objProg.setCompiling(options.compiling);
+            objProg.setTiering(options.tiering, options.callThreshold, options.loopThreshold);
             out.println("Interpretation ...");
-            objProg.interpret(tracing);
+            objProg.interpret(channels(options), options.tracing);
+
+            if (options.stats) {
+                out.println("Superinstructions:");
+                out.println(objProg.showFusion());
+                out.println("Tiers:");
+                out.println(objProg.showTiers());
+            }
         } catch (FunException x) {
             out.printf("Compilation failed %s\n", x.toString());
         } catch (Exception x) {
@@ -36,62 +57,162 @@ public class FunRun {
         }
     }
 
-    private static SVM compile(String filename) throws Exception {
-        // Compile a Fun source program to SVM code.
-        FunLexer lexer = new FunLexer(CharStreams.fromFileName(filename));
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+    private static FunIO channels(FunOptions options) throws IOException {
+        // Return the console, or the input file and standard
+        // output, with the output batched unless it is
+        // interleaved with a trace. Only the console prompts.
+        FunIO io = FunIO.console();
+        if (options.inputFile != null)
+            io = new FunIO.StreamIO(FunInput.map(Path.of(options.inputFile), options.binaryInput), System.out, false);
+        else if (options.binaryInput)
+            io = new FunIO.StreamIO(FunInput.binary(System.in), System.out, false);
+        if (options.tracing) return io;
+        return new FunIO.BatchedIO(io, options.outputBatch);
+    }
 
-        ParseTree tree = syntacticAnalyse(tokens);
-        contextualAnalyse(tree, tokens);
+    private static SVM compile(FunOptions options) throws Exception {
+        // Compile a Fun source program to SVM code,
+        // optimising it as the options select, or load
+        // the object file (.svm) of one. Write the code
+        // to an object file if the options select it.
+        SVM objectProg;
+        if (isObjectFile(options.filename)) {
+            out.println();
+            out.println("Loading object code ...");
+            objectProg = SVMObjectFile.load(Path.of(options.filename));
+        } else {
+            objectProg = new Reporter(options).compile(Files.readAllBytes(Path.of(options.filename)));
+        }
+        if (options.objectFile != null) {
+            SVMObjectFile.write(objectProg, Path.of(options.objectFile), true);
+            out.println("Object file written to " + options.objectFile);
+        }
+        return objectProg;
+    }
 
-        return codeGenerate(tree);
+    static boolean isObjectFile(String filename) {
+        return filename.endsWith(".svm");
     }
 
-    private static ParseTree syntacticAnalyse(CommonTokenStream tokens) throws Exception {
-        // Perform syntactic analysis of a Fun source program.
-        // Print any error messages.
-        // Return a syntax tree representation of the Fun program.
-        out.println();
-        out.println("Syntactic analysis ...");
+    private static RVM compileRegisters(FunOptions options) throws Exception {
+        // Compile a Fun source program to register-based RVM
+        // code, folding expressions if the options select it.
+        // Also print the object code.
+        FunIR.Program program = new Reporter(options).analyse(CharStreams.fromFileName(options.filename));
 
-        FunParser parser = new FunParser(tokens);
-        ParseTree tree = parser.program();
+        out.println("Code generation (register VM) ...");
+        FunRegisterEncoder encoder = new FunRegisterEncoder();
+        encoder.encode(program);
+        RVM objectProg = encoder.getRVM();
 
-        int errors = parser.getNumberOfSyntaxErrors();
-        out.println(errors + " syntactic errors");
+        out.println("Object code:");
+        out.println(objectProg.showCode());
+        return objectProg;
+    }
 
-        if (errors > 0) throw new FunException();
+    private static ClosureProgram compileClosures(FunOptions options) throws Exception {
+        // Compile a Fun source program to a tree of closures,
+        // folding expressions if the options select it.
+        // Also print the specialised nodes.
+        FunIR.Program program = new Reporter(options).analyse(CharStreams.fromFileName(options.filename));
 
-        return tree;
-    }
+        out.println("Closure compilation ...");
+        FunClosureCompiler compiler = new FunClosureCompiler();
+        compiler.compile(program);
 
-    private static void contextualAnalyse(ParseTree tree, CommonTokenStream tokens) throws Exception {
-        // Perform contextual analysis of a Fun program represented by a syntax tree.
-        // Print any error messages.
-        out.println("Contextual analysis ...");
-        FunCheckerVisitor checker = new FunCheckerVisitor(tokens);
-        checker.visit(tree);
-
-        int errors = checker.getNumberOfContextualErrors();
-        out.println(errors + " scope/type errors");
-        out.println();
-        if (errors > 0) throw new FunException();
+        out.println("Specialised nodes:");
+        out.println(compiler.showSpecialisations());
+        return compiler.getProgram();
     }
 
-    private static SVM codeGenerate(ParseTree tree) {
-        // Perform code generation of a Fun program,
-        // represented by a syntax tree, emitting SVM code.
-        // Also print the object code.
-        out.println("Code generation ...");
-        FunEncoderVisitor encoder = new FunEncoderVisitor();
-        encoder.visit(tree);
-        SVM objectProg = encoder.getSVM();
+    /**
+     * A compiler that prints the progress of each phase.
+     */
+    private static class Reporter extends FunCompiler {
 
-        out.println("Object code:");
-        out.println(objectProg.showCode());
+        Reporter(FunOptions options) {
+            super(options);
+        }
 
-        return objectProg;
-    }
+        @Override
+        public SVM compile(byte[] source) throws Exception {
+            // Also print the statistics of the cache, if used.
+            SVM objectProg = super.compile(source);
+            if (this.options.cacheDir != null && this.options.stats) {
+                out.println("Compilation cache:");
+                out.println(new FunCompileCache(Path.of(this.options.cacheDir), this.options.cacheLimit).showStats());
+            }
+            return objectProg;
+        }
 
+        @Override
+        protected SVM lookup(FunCompileCache cache, String key) {
+            SVM objectProg = super.lookup(cache, key);
+            if (objectProg != null) {
+                out.println();
+                out.println("Loading cached object code " + key + " ...");
+            }
+            return objectProg;
+        }
+
+        @Override
+        public SVM compile(CharStream source) throws Exception {
+            // Also print the object code.
+            SVM objectProg = super.compile(source);
+            out.println("Object code:");
+            out.println(objectProg.showCode());
+            return objectProg;
+        }
+
+        @Override
+        protected FunFrontEnd.Parse syntacticAnalyse(CharStream source) {
+            // Print any error messages, and the time taken.
+            out.println();
+            out.println("Syntactic analysis ...");
+            FunFrontEnd.Parse parse = super.syntacticAnalyse(source);
+            out.println(parse.errors + " syntactic errors");
+            out.println(parse.showTime());
+            return parse;
+        }
+
+        @Override
+        protected FunCheckerVisitor contextualAnalyse(FunFrontEnd.Parse parse) {
+            // Print any error messages.
+            out.println("Contextual analysis ...");
+            FunCheckerVisitor checker = super.contextualAnalyse(parse);
+            out.println(checker.getNumberOfContextualErrors() + " scope/type errors");
+            out.println();
+            return checker;
+        }
+
+        @Override
+        protected FunIR.Program optimise(FunIR.Program program) {
+            // Print a summary of the optimisations.
+            out.println("Optimisation ...");
+            FunIR.Program optimised = super.optimise(program);
+            out.println(this.optimiser.showOptimisations());
+            out.println();
+            return optimised;
+        }
+
+        @Override
+        protected SVM codeGenerate(FunIR.Program program) {
+            out.println("Code generation ...");
+            SVM objectProg = super.codeGenerate(program);
+            if (this.options.inlining) {
+                out.println("Inlining:");
+                out.println(this.encoder.showInlining());
+            }
+            return objectProg;
+        }
+
+        @Override
+        protected String peephole(SVM program) {
+            String summary = super.peephole(program);
+            out.println("Peephole optimisation: " + summary);
+            return summary;
+        }
+
+    }
 
 }
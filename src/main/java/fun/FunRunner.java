@@ -0,0 +1,208 @@
+package fun;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runner for batches of independent Fun jobs, each a compiled
+ * program and its input, run concurrently. Every job runs on a
+ * thread of its own, in its own SVM context with in-memory IO,
+ * so one compiled program may serve many jobs at once. At most
+ * a given number of jobs run at a time; submitting more waits
+ * for one to finish.
+ */
+public class FunRunner implements AutoCloseable {
+
+    private static final PrintStream out = System.out;
+
+    public static final class Job {
+
+        public final String name;
+        public final SVM program;
+        public final int[] input;
+
+        public Job(String name, SVM program, int[] input) {
+            this.name = name;
+            this.program = program;
+            this.input = input;
+        }
+
+    }
+
+    public static final class Result {
+
+        public final String name;
+        public final int[] output;          // integers written, up to any failure
+        public final RuntimeException failure;  // null if the job completed
+        public final long waitNanos;        // time from submission to start
+        public final long runNanos;         // time running
+
+        Result(String name, int[] output, RuntimeException failure, long waitNanos, long runNanos) {
+            this.name = name;
+            this.output = output;
+            this.failure = failure;
+            this.waitNanos = waitNanos;
+            this.runNanos = runNanos;
+        }
+
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore permits;        // one per job that may run now
+    private final boolean virtual;          // jobs run on virtual threads
+
+    public FunRunner(int concurrency) {
+        // Run on virtual threads where the JVM has them (Java 21
+        // on), else on a pool with a platform thread per permit.
+        this.permits = new Semaphore(concurrency);
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException x) {
+            executor = null;
+        }
+        this.virtual = (executor != null);
+        this.executor = (executor != null ? executor : Executors.newFixedThreadPool(concurrency));
+    }
+
+    public boolean isVirtual() {
+        return this.virtual;
+    }
+
+    public Future<Result> submit(Job job) throws InterruptedException {
+        // Start the job once fewer than the allowed number of
+        // jobs are running, waiting for that if need be.
+        long submitted = System.nanoTime();
+        this.permits.acquire();
+        try {
+            return this.executor.submit(() -> {
+                try {
+                    return run(job, submitted);
+                } finally {
+                    this.permits.release();
+                }
+            });
+        } catch (RuntimeException x) {
+            this.permits.release();
+            throw x;
+        }
+    }
+
+    public List<Result> runAll(List<Job> jobs) throws InterruptedException {
+        // Run every job, and return their results in order.
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Job job : jobs) futures.add(this.submit(job));
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException x) {
+                throw new IllegalStateException(x.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static Result run(Job job, long submitted) {
+        FunIO.ArrayIO io = new FunIO.ArrayIO(job.input);
+        long start = System.nanoTime();
+        RuntimeException failure = null;
+        try {
+            job.program.interpret(io, false);
+        } catch (RuntimeException x) {
+            failure = x;
+        } catch (StackOverflowError x) {
+            failure = new IllegalStateException("stack overflow", x);
+        }
+        long end = System.nanoTime();
+        return new Result(job.name, io.output(), failure, start - submitted, end - start);
+    }
+
+    @Override
+    public void close() {
+        // Wait for the jobs submitted to finish.
+        this.executor.shutdown();
+        try {
+            while (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) ;
+        } catch (InterruptedException x) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static SVM compile(FunOptions options) throws Exception {
+        // Compile a Fun source program to SVM code as FunRun
+        // does, but without reporting each phase, and set the
+        // SVM's execution modes from the options. An object
+        // file (.svm) is loaded instead. Throw FunException if
+        // the program has errors.
+        if (!FunRun.isObjectFile(options.filename))
+            return compile(Files.readAllBytes(Path.of(options.filename)), options);
+        SVM program = SVMObjectFile.load(Path.of(options.filename));
+        setModes(program, options);
+        return program;
+    }
+
+    public static SVM compile(byte[] source, FunOptions options) throws Exception {
+        // Compile the text of a Fun source program, as above,
+        // loading its cached code instead if the options select
+        // the cache.
+        SVM program = new FunCompiler(options).compile(source);
+        setModes(program, options);
+        return program;
+    }
+
+    private static void setModes(SVM program, FunOptions options) {
+        program.setFusing(options.fusing);
+        program.setCaching(options.caching);
+        program.setCompiling(options.compiling);
+        program.setTiering(options.tiering, options.callThreshold, options.loopThreshold);
+    }
+
+    public static void main(String[] args) {
+        // Compile a Fun source program, then run it once for
+        // each input file given after it, as separate jobs.
+        // Print the output and timing of each job, in order.
+        try {
+            FunOptions options = FunOptions.parse(args);
+            SVM program = compile(options);
+            List<Job> jobs = new ArrayList<>();
+            for (String input : options.inputs)
+                jobs.add(new Job(input, program, FunInput.map(Path.of(input), options.binaryInput).toArray()));
+
+            long start = System.nanoTime();
+            List<Result> results;
+            boolean virtual;
+            try (FunRunner runner = new FunRunner(options.jobs)) {
+                virtual = runner.isVirtual();
+                results = runner.runAll(jobs);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            for (Result result : results) {
+                StringBuilder line = new StringBuilder();
+                line.append(String.format("%-24s %10.3f ms  %10.3f ms wait", result.name,
+                        result.runNanos / 1e6, result.waitNanos / 1e6));
+                if (result.failure != null) line.append(" failed ").append(result.failure);
+                for (int value : result.output) line.append(' ').append(value);
+                out.println(line);
+            }
+            out.printf("%d jobs in %.3f ms, at most %d at a time on %s threads\n", results.size(), elapsed / 1e6,
+                    options.jobs, (virtual ? "virtual" : "platform"));
+        } catch (FunException x) {
+            out.printf("Compilation failed %s\n", x.toString());
+        } catch (Exception x) {
+            x.printStackTrace(out);
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package fun;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A scheduler running many Fun programs as green threads over
+ * a few worker threads. Each program runs in slices of a fixed
+ * budget of calls and loop iterations (see SVM.resume); a task
+ * whose slice is spent goes to the back of a queue shared by
+ * the workers, so the tasks take turns. A task reading when no
+ * input is waiting is parked, occupying no worker, until input
+ * is supplied to it.
+ */
+public class FunScheduler implements AutoCloseable {
+
+    private static final PrintStream out = System.out;
+
+    /**
+     * A program run by the scheduler, with its input supplied
+     * while it runs and its output written to a given FunIO.
+     */
+    public final class Task implements FunIO {
+
+        public final String name;
+        private final SVM program;
+        private final SVMContext context;
+        private final FunIO output;
+        private final ArrayDeque<Integer> input = new ArrayDeque<>();
+        private final CompletableFuture<Byte> completion = new CompletableFuture<>();
+        private boolean closed = false;     // no more input to come
+        private boolean parked = false;     // waiting for input
+        private int slices = 0;             // slices run so far
+
+        private Task(String name, SVM program, FunIO output) {
+            this.name = name;
+            this.program = program;
+            this.output = output;
+            this.context = program.start(this);
+        }
+
+        public synchronized void supply(int... values) {
+            // Add values to the input, waking the task if parked.
+            for (int value : values) this.input.add(value);
+            this.wake();
+        }
+
+        public synchronized void closeInput() {
+            // Mark the end of the input: a read beyond it fails.
+            this.closed = true;
+            this.wake();
+        }
+
+        private void wake() {
+            if (this.parked) {
+                this.parked = false;
+                schedule(this);
+            }
+        }
+
+        public CompletableFuture<Byte> completion() {
+            // Return the final status of the task, once it stops.
+            return this.completion;
+        }
+
+        public int getSlices() {
+            return this.slices;
+        }
+
+        @Override
+        public synchronized int read() {
+            Integer value = this.input.poll();
+            if (value == null) throw new NoSuchElementException();
+            return value;
+        }
+
+        @Override
+        public synchronized boolean ready() {
+            return !this.input.isEmpty() || this.closed;
+        }
+
+        @Override
+        public void write(int value) {
+            this.output.write(value);
+        }
+
+        @Override
+        public void flush() {
+            this.output.flush();
+        }
+
+        private void step() {
+            // Run one slice on a worker, then requeue the task,
+            // park it, or complete it.
+            this.slices++;
+            byte status;
+            try {
+                status = this.program.resume(this.context, FunScheduler.this.slice);
+            } catch (RuntimeException x) {
+                this.program.release(this.context);
+                this.completion.completeExceptionally(x);
+                return;
+            }
+            switch (status) {
+                case SVM.SUSPENDED -> schedule(this);
+                case SVM.BLOCKED -> {
+                    synchronized (this) {
+                        if (this.ready()) schedule(this);
+                        else this.parked = true;
+                    }
+                }
+                default -> {
+                    this.program.release(this.context);
+                    this.completion.complete(status);
+                }
+            }
+        }
+
+    }
+
+    private final ExecutorService workers;
+    private final int slice;
+    private final List<Task> tasks = new ArrayList<>();
+
+    public FunScheduler(int workers, int slice) {
+        // Slices are queued in order, so the tasks run in turn.
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.slice = slice;
+    }
+
+    public Task spawn(String name, SVM program, FunIO output) {
+        // Start a task running program, which must be in sliced
+        // mode, writing to output.
+        Task task = new Task(name, program, output);
+        synchronized (this.tasks) {
+            this.tasks.add(task);
+        }
+        this.schedule(task);
+        return task;
+    }
+
+    private void schedule(Task task) {
+        this.workers.execute(task::step);
+    }
+
+    @Override
+    public void close() {
+        // Wait for every task spawned to stop, then the workers.
+        // If interrupted, stop the workers at once.
+        List<Task> tasks;
+        synchronized (this.tasks) {
+            tasks = new ArrayList<>(this.tasks);
+        }
+        try {
+            for (Task task : tasks) {
+                try {
+                    task.completion.get();
+                } catch (ExecutionException x) {
+                    // reported by the task's completion
+                }
+            }
+            this.workers.shutdown();
+        } catch (InterruptedException x) {
+            this.workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) {
+        // Compile a Fun source program, then run it as a green
+        // thread for each input file given after it, over the
+        // given number of workers. Print the output of each
+        // task, in order.
+        try {
+            FunOptions options = FunOptions.parse(args);
+            SVM program = FunRunner.compile(options);
+            program.setSlicing(true);
+
+            long start = System.nanoTime();
+            List<Task> tasks = new ArrayList<>();
+            List<FunIO.ArrayIO> outputs = new ArrayList<>();
+            try (FunScheduler scheduler = new FunScheduler(options.jobs, options.slice)) {
+                for (String input : options.inputs) {
+                    // Read the input first, as a task left waiting
+                    // for input would never finish.
+                    int[] values = FunInput.map(Path.of(input), options.binaryInput).toArray();
+                    FunIO.ArrayIO output = new FunIO.ArrayIO();
+                    Task task = scheduler.spawn(input, program, output);
+                    task.supply(values);
+                    task.closeInput();
+                    tasks.add(task);
+                    outputs.add(output);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                StringBuilder line = new StringBuilder(String.format("%-24s %8d slices", task.name, task.getSlices()));
+                try {
+                    task.completion().get();
+                } catch (ExecutionException x) {
+                    line.append(" failed ").append(x.getCause());
+                }
+                for (int value : outputs.get(i).output()) line.append(' ').append(value);
+                out.println(line);
+            }
+            out.printf("%d tasks in %.3f ms on %d workers, %d calls and loop iterations per slice\n", tasks.size(),
+                    elapsed / 1e6, options.jobs, options.slice);
+        } catch (FunException x) {
+            out.printf("Compilation failed %s\n", x.toString());
+        } catch (Exception x) {
+            x.printStackTrace(out);
+        }
+    }
+
+}
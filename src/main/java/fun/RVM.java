@@ -0,0 +1,322 @@
+package fun;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Representation and interpretation of register-based code for
+ * Fun, an alternative to the stack-based SVM. Its instructions
+ * name the words of the current frame (its registers) directly,
+ * with the same layout as SVM frames: link data at offsets 0 and
+ * 1, then the parameter and locals at the offsets given by their
+ * Addresses, then temporaries.
+ */
+public class RVM {
+
+    // Each RVM object is a simple virtual machine.
+    // This comprises a code store, a data store, and
+    // registers pc (program counter), fp (frame pointer),
+    // and status (initially RUNNING).
+
+    // The data store holds the globals at their addresses,
+    // followed by a frame for the global initialisers and
+    // then the frames of the procedures called. Register r
+    // of the current frame is the word at fp + r.
+
+    // The code store contains instructions of one or more
+    // words, in which the first word contains the opcode.
+    // Register pc points to the first word of the next
+    // instruction to be executed. The instruction set is
+    // as follows:
+    //
+    // Opcode Words Mnemonic     Behaviour
+    //    0    1+2  CONST d k    r[d] <- k.
+    //    1    1+2  MOVE d s     r[d] <- r[s].
+    //    2    1+2  GETG d g     r[d] <- word at global address g.
+    //    3    1+2  PUTG g s     word at global address g <- r[s].
+    //    4    1+3  ADD d a b    r[d] <- r[a] + r[b].
+    //    5    1+3  SUB d a b    r[d] <- r[a] - r[b].
+    //    6    1+3  MUL d a b    r[d] <- r[a] * r[b].
+    //    7    1+3  DIV d a b    r[d] <- r[a] / r[b].
+    //    8    1+3  ADDI d a k   r[d] <- r[a] + k.
+    //    9    1+3  CMPEQ d a b  r[d] <- (if r[a]=r[b] then 1 else 0).
+    //   10    1+3  CMPLT d a b  r[d] <- (if r[a]<r[b] then 1 else 0).
+    //   11    1+3  CMPGT d a b  r[d] <- (if r[a]>r[b] then 1 else 0).
+    //   12    1+2  NOT d a      r[d] <- (if r[a]=0 then 1 else 0).
+    //   13    1+1  JUMP c       pc <- c.
+    //   14    1+2  JUMPF a c    if r[a]=0 then pc <- c.
+    //   15    1+2  JUMPT a c    if r[a]!=0 then pc <- c.
+    //   16    1+3  JLT a b c    if r[a]<r[b] then pc <- c.
+    //   17    1+3  JGE a b c    if r[a]>=r[b] then pc <- c.
+    //   18    1+3  JGT a b c    if r[a]>r[b] then pc <- c.
+    //   19    1+3  JLE a b c    if r[a]<=r[b] then pc <- c.
+    //   20    1+3  JEQ a b c    if r[a]=r[b] then pc <- c.
+    //   21    1+3  JNE a b c    if r[a]!=r[b] then pc <- c.
+    //   22    1+4  JIN a l h c  if l<=r[a]<=h then pc <- c.
+    //   23    1+2  CALL b c     new frame at register b, containing
+    //                           dynamic link <- fp and
+    //                           return address <- pc, above which
+    //                           register b+2 holds the argument;
+    //                           fp <- fp + b; pc <- c.
+    //   24    1    RETURN       fp <- dynamic link;
+    //                           pc <- return address.
+    //   25    1+1  RETV s       r[0] <- r[s], the result, which
+    //                           the caller finds in register b;
+    //                           then as RETURN.
+    //   26    1+1  READ d       r[d] <- an int read from input.
+    //   27    1+1  WRITE s      write r[s] to output.
+    //   28    1    HALT         status <- HALTED.
+    //   29    1+2  TCALL b c    tail call: r[2] <- r[b+2], the
+    //                           argument (if any), reusing the
+    //                           current frame; pc <- c.
+
+    public static final int         // opcodes
+            CONST = 0, MOVE = 1,
+            GETG = 2, PUTG = 3,
+            ADD = 4, SUB = 5,
+            MUL = 6, DIV = 7,
+            ADDI = 8,
+            CMPEQ = 9, CMPLT = 10, CMPGT = 11,
+            NOT = 12,
+            JUMP = 13, JUMPF = 14, JUMPT = 15,
+            JLT = 16, JGE = 17, JGT = 18, JLE = 19, JEQ = 20, JNE = 21,
+            JIN = 22,
+            CALL = 23, RETURN = 24, RETV = 25,
+            READ = 26, WRITE = 27,
+            HALT = 28,
+            TCALL = 29;
+    public static final byte        // status codes
+            RUNNING = 0,
+            HALTED = 1,
+            FAILED = 2;
+    private static final String[] MNEMONIC = {
+            "CONST   ", "MOVE    ",
+            "GETG    ", "PUTG    ",
+            "ADD     ", "SUB     ",
+            "MUL     ", "DIV     ",
+            "ADDI    ",
+            "CMPEQ   ", "CMPLT   ", "CMPGT   ",
+            "NOT     ",
+            "JUMP    ", "JUMPF   ", "JUMPT   ",
+            "JLT     ", "JGE     ", "JGT     ", "JLE     ", "JEQ     ", "JNE     ",
+            "JIN     ",
+            "CALL    ", "RETURN  ", "RETV    ",
+            "READ    ", "WRITE   ",
+            "HALT    ", "TCALL   "};
+    static final int[] WORDS = {
+            3, 3,
+            3, 3,
+            4, 4,
+            4, 4,
+            4,
+            4, 4, 4,
+            3,
+            2, 3, 3,
+            4, 4, 4, 4, 4, 4,
+            5,
+            3, 1, 2,
+            2, 2,
+            1, 3};
+
+
+    // MACHINE STATE
+    private static final PrintStream out = System.out;
+    protected int[] code;      // code store
+    protected int cl;          // code limit
+    protected int pc;          // program counter
+    protected int[] data;      // data store
+    protected int fp;          // frame pointer
+    protected int globals;     // number of global words
+    protected byte status;
+
+    public RVM() {
+        this.code = new int[4096];
+        this.cl = 0;
+    }
+
+    public void interpret(boolean tracing) {
+        // Interpret the program, reading and writing on the
+        // console.
+        this.interpret(FunIO.console(), tracing);
+    }
+
+    public void interpret(FunIO io, boolean tracing) {
+        // Interpret the program starting at word 0 in the code
+        // store, with the initialisers' frame above the globals,
+        // and the given IO channels, flushed when it stops.
+        // If tracing is true, print each instruction as it is
+        // executed.
+        try {
+            this.execute(io, tracing);
+        } finally {
+            io.flush();
+        }
+    }
+
+    private void execute(FunIO io, boolean tracing) {
+        // Run the program until it halts or fails.
+        this.data = new int[32768];
+        this.status = RUNNING;
+        int[] code = this.code;
+        int[] data = this.data;
+        int pc = 0;
+        int fp = this.globals;
+        do {
+            if (tracing) out.println(showInstruction(pc));
+            switch (code[pc]) {
+                case CONST -> {
+                    data[fp + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                }
+                case MOVE -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]];
+                    pc += 3;
+                }
+                case GETG -> {
+                    data[fp + code[pc + 1]] = data[code[pc + 2]];
+                    pc += 3;
+                }
+                case PUTG -> {
+                    data[code[pc + 1]] = data[fp + code[pc + 2]];
+                    pc += 3;
+                }
+                case ADD -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]] + data[fp + code[pc + 3]];
+                    pc += 4;
+                }
+                case SUB -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]] - data[fp + code[pc + 3]];
+                    pc += 4;
+                }
+                case MUL -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]] * data[fp + code[pc + 3]];
+                    pc += 4;
+                }
+                case DIV -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]] / data[fp + code[pc + 3]];
+                    pc += 4;
+                }
+                case ADDI -> {
+                    data[fp + code[pc + 1]] = data[fp + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                }
+                case CMPEQ -> {
+                    data[fp + code[pc + 1]] = (data[fp + code[pc + 2]] == data[fp + code[pc + 3]] ? 1 : 0);
+                    pc += 4;
+                }
+                case CMPLT -> {
+                    data[fp + code[pc + 1]] = (data[fp + code[pc + 2]] < data[fp + code[pc + 3]] ? 1 : 0);
+                    pc += 4;
+                }
+                case CMPGT -> {
+                    data[fp + code[pc + 1]] = (data[fp + code[pc + 2]] > data[fp + code[pc + 3]] ? 1 : 0);
+                    pc += 4;
+                }
+                case NOT -> {
+                    data[fp + code[pc + 1]] = (data[fp + code[pc + 2]] == 0 ? 1 : 0);
+                    pc += 3;
+                }
+                case JUMP -> pc = code[pc + 1];
+                case JUMPF -> pc = (data[fp + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3);
+                case JUMPT -> pc = (data[fp + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3);
+                case JLT -> pc = (data[fp + code[pc + 1]] < data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JGE -> pc = (data[fp + code[pc + 1]] >= data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JGT -> pc = (data[fp + code[pc + 1]] > data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JLE -> pc = (data[fp + code[pc + 1]] <= data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JEQ -> pc = (data[fp + code[pc + 1]] == data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JNE -> pc = (data[fp + code[pc + 1]] != data[fp + code[pc + 2]] ? code[pc + 3] : pc + 4);
+                case JIN -> {
+                    int w = data[fp + code[pc + 1]];
+                    pc = (w >= code[pc + 2] && w <= code[pc + 3] ? code[pc + 4] : pc + 5);
+                }
+                case CALL -> {
+                    int callee = fp + code[pc + 1];
+                    data[callee] = fp;          // dyn link
+                    data[callee + 1] = pc + 3;  // return addr
+                    fp = callee;
+                    pc = code[pc + 2];
+                }
+                case TCALL -> {
+                    data[fp + 2] = data[fp + code[pc + 1] + 2];
+                    pc = code[pc + 2];
+                }
+                case RETURN -> {
+                    pc = data[fp + 1];
+                    fp = data[fp];
+                }
+                case RETV -> {
+                    int result = data[fp + code[pc + 1]];
+                    int dl = data[fp];
+                    pc = data[fp + 1];
+                    data[fp] = result;
+                    fp = dl;
+                }
+                case READ -> {
+                    data[fp + code[pc + 1]] = io.read();
+                    pc += 2;
+                }
+                case WRITE -> {
+                    io.write(data[fp + code[pc + 1]]);
+                    pc += 2;
+                }
+                case HALT -> this.status = HALTED;
+                default -> {
+                    out.println("Illegal instruction" + code[pc]);
+                    this.status = FAILED;
+                }
+            }
+        } while (this.status == RUNNING);
+        this.pc = pc;
+        this.fp = fp;
+    }
+
+
+    // CODE EMISSION
+    public int emit(int opcode, int... operands) {
+        // Add an instruction to the code store. Return its
+        // offset.
+        int at = this.cl;
+        if (at + 1 + operands.length > this.code.length)
+            this.code = Arrays.copyOf(this.code, 2 * this.code.length + operands.length);
+        this.code[this.cl++] = opcode;
+        for (int operand : operands) this.code[this.cl++] = operand;
+        return at;
+    }
+
+    public void patch(int addr, int target) {
+        // Patch the target (last operand) of the jump or call
+        // at offset addr.
+        this.code[addr + WORDS[this.code[addr]] - 1] = target;
+    }
+
+    public int currentOffset() {
+        // Return the offset of the next instruction to be added.
+        return this.cl;
+    }
+
+    public void setGlobals(int globals) {
+        // Record the number of global words, which lie below
+        // the first frame.
+        this.globals = globals;
+    }
+
+
+    // DISPLAY
+    public String showCode() {
+        // Return a textual representation of all the code.
+        StringBuilder assembly = new StringBuilder();
+        for (int c = 0; c < this.cl; c += WORDS[this.code[c]])
+            assembly.append(showInstruction(c)).append("\n");
+        return assembly.toString();
+    }
+
+    private String showInstruction(int c) {
+        // Return a textual representation of the instruction
+        // at offset c in the code store.
+        int opcode = this.code[c];
+        StringBuilder line = new StringBuilder(String.format("%6d: %s", c, MNEMONIC[opcode]));
+        for (int i = 1; i < WORDS[opcode]; i++) line.append(i > 1 ? " " : "").append(this.code[c + i]);
+        return line.toString();
+    }
+
+}
@@ -1,7 +1,15 @@
 package fun;
 
 import java.io.PrintStream;
-import java.util.Scanner;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.IntStream;
 
 /**
  * Representation and interpretation of FunVM code.
@@ -11,9 +19,10 @@ import java.util.Scanner;
 public class SVM {
 
     // Each SVM object is a simple virtual machine.
-    // This comprises a code store, a data store, and
-    // registers pc (program counter), sp (stack pointer),
-    // fp (frame pointer), and status (initially RUNNING).
+    // This comprises a code store, and for each run an
+    // SVMContext holding a data store and registers pc
+    // (program counter), sp (stack pointer), fp (frame
+    // pointer), and status (initially RUNNING).
 
     // The data store contains a stack of words. Register sp
     // points to the first free word above the stack top.
@@ -66,6 +75,36 @@ public class SVM {
     //   22    1+1  COPYARG s  swap arguments (s words) into
     //                         the topmost frame, just above
     //                         the return address.
+    //   23   1+2+2 TABLE l n  pop w;
+    //                         followed by n+1 JUMP instructions;
+    //                         if l <= w < l+n then take the
+    //                         (w-l+1)th JUMP after the first,
+    //                         else take the first (default).
+    //   24    1+2  LOOKUP n   pop w;
+    //                         followed by a JUMP (default) and
+    //                         n RANGE/JUMP pairs, sorted and
+    //                         disjoint; take the JUMP after the
+    //                         RANGE containing w, if any, else
+    //                         take the default JUMP.
+    //   25   1+2+2 RANGE l h  the values l..h of a LOOKUP
+    //                         (never executed).
+    //   26    1+2  TEEG d     w <- top word (not popped);
+    //                         word at global address d <- w.
+    //   27    1+2  TEEL d     w <- top word (not popped);
+    //                         word at local address d <- w.
+    //   28    1+2  JUMPLT c   pop w2; pop w1; if w1<w2 then pc <- c.
+    //   29    1+2  JUMPGE c   pop w2; pop w1; if w1>=w2 then pc <- c.
+    //   30    1+2  JUMPGT c   pop w2; pop w1; if w1>w2 then pc <- c.
+    //   31    1+2  JUMPLE c   pop w2; pop w1; if w1<=w2 then pc <- c.
+    //   32    1+2  JUMPEQ c   pop w2; pop w1; if w1=w2 then pc <- c.
+    //   33    1+2  JUMPNE c   pop w2; pop w1; if w1!=w2 then pc <- c.
+    //   34    1+2  TCALL c    tail call: move the arguments (s words,
+    //                         as given by the COPYARG s at c, if any)
+    //                         into the topmost frame, just above its
+    //                         link data, discarding the rest of the
+    //                         frame; pc <- first instruction at c
+    //                         after any COPYARG.
+    //   35    1+2  POP n      pop n words.
 
     public static final byte        // opcodes
             LOADG = 0, STOREG = 1,
@@ -79,15 +118,70 @@ public class SVM {
             HALT = 16, JUMP = 17,
             JUMPF = 18, JUMPT = 19,
             CALL = 20, RETURN = 21,
-            COPYARG = 22;
+            COPYARG = 22,
+            TABLE = 23, LOOKUP = 24,
+            RANGE = 25,
+            TEEG = 26, TEEL = 27,
+            JUMPLT = 28, JUMPGE = 29,
+            JUMPGT = 30, JUMPLE = 31,
+            JUMPEQ = 32, JUMPNE = 33,
+            TCALL = 34,
+            POP = 35;
+
+    // Superinstructions exist only in the decoded form of the
+    // code. Each replaces a fixed sequence of instructions that
+    // the encoder commonly emits, and is followed in the decoded
+    // code by one or two extra operand words. (A SUB in place of
+    // the ADD is fused by negating k.)
+    //
+    // Opcode Words Mnemonic    Replaces
+    //   64    1+1  INCL d k    LOADL d; LOADC k; ADD; STOREL d
+    //   65    1+1  INCG d k    LOADG d; LOADC k; ADD; STOREG d
+    //   66    1+1  ADDLC d k   LOADL d; LOADC k; ADD
+    //   67-72 1+2  JLCcc d k c LOADL d; LOADC k; JUMPcc c
+    //   73-78 1+2  JGCcc d k c LOADG d; LOADC k; JUMPcc c
+    //   79-84 1+2  JLLcc d e c LOADL d; LOADL e; JUMPcc c
+    //
+    // The condition cc of a fused branch is one of LT, GE, GT,
+    // LE, EQ, NE, as in the compare-and-branch JUMPcc. The
+    // sequence LOADC k; LOADG d; JUMPcc c emitted for switch
+    // cases fuses to a JGCcc with the comparison reversed.
+
+    public static final int         // superinstructions
+            FUSED = 64,
+            INCL = 64, INCG = 65, ADDLC = 66,
+            JLCLT = 67, JLCGE = 68, JLCGT = 69, JLCLE = 70, JLCEQ = 71, JLCNE = 72,
+            JGCLT = 73, JGCGE = 74, JGCGT = 75, JGCLE = 76, JGCEQ = 77, JGCNE = 78,
+            JLLLT = 79, JLLGE = 80, JLLGT = 81, JLLLE = 82, JLLEQ = 83, JLLNE = 84;
+
+    // In tiered or sliced mode the decoded code also contains a
+    // LOOP instruction in front of every backward jump (fused or
+    // not), counting the iterations of that loop.
+    //
+    // Opcode Words Mnemonic    Behaviour
+    //   96    1    LOOP c      count an iteration of the loop
+    //                          whose backward jump is at offset c;
+    //                          at loopThreshold, continue in
+    //                          compiled code from offset c.
+
+    public static final int         // loop counter
+            LOOP = 96;
+    private static final int        // conditions of JUMPcc and fused branches
+            LT = 0, GE = 1, GT = 2, LE = 3, EQ = 4, NE = 5;
     public static final byte        // status codes
             RUNNING = 0,
             HALTED = 1,
-            FAILED = 2;
+            FAILED = 2,
+            SUSPENDED = 3,          // sliced run out of budget
+            BLOCKED = 4;            // sliced run waiting for input
+    public static final int         // return address of a call from compiled code
+            RETURN_TO_CALLER = -1;
     public static final int         // offsets of IO routines
             READ_OFF_SET = 32766,
             WRITE_OFF_SET = 32767,
             IO_BASE = 32766;
+    public static final int         // words in the data store of a context
+            DATA_SIZE = 32768;
     private static final String[] MNEMONIC = {
             "LOADG   ", "STOREG  ",
             "LOADL   ", "STOREL  ",
@@ -100,8 +194,14 @@ public class SVM {
             "HALT    ", "JUMP    ",
             "JUMPF   ", "JUMPT   ",
             "CALL    ", "RETURN  ",
-            "COPYARG "};
-    private static final int[] BYTES = {
+            "COPYARG ", "TABLE   ",
+            "LOOKUP  ", "RANGE   ",
+            "TEEG    ", "TEEL    ",
+            "JUMPLT  ", "JUMPGE  ",
+            "JUMPGT  ", "JUMPLE  ",
+            "JUMPEQ  ", "JUMPNE  ",
+            "TCALL   ", "POP     "};
+    static final int[] BYTES = {
             3, 3,
             3, 3,
             3, 1,
@@ -113,26 +213,102 @@ public class SVM {
             1, 3,
             3, 3,
             3, 2,
-            2};
+            2, 5,
+            3, 5,
+            3, 3,
+            3, 3,
+            3, 3,
+            3, 3,
+            3, 3};
+    private static final String[] FUSED_MNEMONIC = {
+            "INCL    ", "INCG    ", "ADDLC   ",
+            "JLCLT   ", "JLCGE   ", "JLCGT   ", "JLCLE   ", "JLCEQ   ", "JLCNE   ",
+            "JGCLT   ", "JGCGE   ", "JGCGT   ", "JGCLE   ", "JGCEQ   ", "JGCNE   ",
+            "JLLLT   ", "JLLGE   ", "JLLGT   ", "JLLLE   ", "JLLEQ   ", "JLLNE   "};
+    private static final int[] FUSED_LENGTH = {     // instructions replaced
+            4, 4, 3,
+            3, 3, 3, 3, 3, 3,
+            3, 3, 3, 3, 3, 3,
+            3, 3, 3, 3, 3, 3};
 
 
     // MACHINE STATE
-    private static final Scanner in = new Scanner(System.in);
+    // Once prepared for running, the code is only read, so any
+    // number of threads may run it at once, each in its own
+    // SVMContext. Contexts are pooled for reuse between runs.
     private static final PrintStream out = System.out;
+    private static final int POOL_SIZE = 64;    // most idle contexts kept
     protected byte[] code;     // code store
     protected int cl;          // code limit
-    protected int pc;          // program counter
-    protected int[] data;      // data store (stack)
-    protected int sp;          // stack pointer
+    protected int globals;     // number of global variables
+    protected int[] entryTable;    // procedure entries loaded with the code, or null
+    private final BlockingQueue<SVMContext> pool = new ArrayBlockingQueue<>(POOL_SIZE);
 
 
-    // CONSTRUCTOR
-    protected int fp;          // frame pointer
+    // DECODED CODE
+    // The byte-codes in the code store are the canonical form
+    // of a program. Before interpretation they are decoded once
+    // into a word per instruction, holding the opcode in the low
+    // 8 bits and the (sign-extended) operand in the high 24 bits.
+    // Jump and call targets are converted from byte offsets into
+    // word indices, so the interpreter never reassembles operands.
+    // While interpreting, pc holds a word index rather than a
+    // byte offset.
+    protected int[] decoded;   // decoded code (null if stale)
+    protected int[] offsets;   // byte offset of each decoded word
+    protected int[] index;     // word index of each byte offset
+    protected boolean fusing = true;    // decode superinstructions
+    protected int[] fusedSites;         // superinstructions decoded
+    protected long[] fusedHits;         // superinstructions executed, over all runs
+    protected boolean compiling = false;    // run procedures as JVM code
+    protected boolean caching = false;      // cache the stack top in a local
+    protected MethodHandle[] compiled;      // compiled code of each procedure
 
+    // Compiled code is shared by all runs. It is written only
+    // by promote, under the SVM's lock, and read without it:
+    // a run that misses a procedure compiled by another thread
+    // simply interprets it.
 
-    // CODE INTERPRETATION
-    protected byte status;
 
+    // TIERED EXECUTION
+    // In tiered mode every procedure starts interpreted. The
+    // interpreter counts the calls of each procedure and the
+    // iterations of each loop. A procedure is compiled when its
+    // calls reach callThreshold; a loop reaching loopThreshold
+    // compiles its procedure and continues in the compiled code
+    // from the loop (on-stack replacement), which lets a long
+    // loop in main leave the interpreter. The counts are over
+    // all runs of the program: each run keeps its own, added to
+    // the totals when it halts, and tests a threshold against
+    // the totals of the runs before it plus its own count, so a
+    // program run many times is promoted though no run is hot.
+    protected boolean tiering = false;
+    protected int callThreshold = 100;
+    protected int loopThreshold = 1000;
+    protected int[] entries;            // byte offsets of procedures
+    protected int[] osrEntries;         // byte offsets of LOOP instructions
+    protected long[] callCounts;        // calls of the procedure at each word, over all runs
+    protected long[] loopCounts;        // iterations of the loop at each word, over all runs
+    protected boolean[] promoted;       // compilation attempted, by entry word
+    protected final List<String> promotions = new ArrayList<>();
+    protected final Map<Integer, String> procedureNames = new TreeMap<>();
+
+
+    // SLICED EXECUTION
+    // In sliced mode a run may be started, then resumed again
+    // and again with a budget of calls and loop iterations. When
+    // the budget is spent, or a read would wait for input, the
+    // run stops before the CALL or LOOP instruction concerned,
+    // with its state kept in its context, ready to resume. Every
+    // path that runs for long passes through a call or loop, so
+    // the work done between checks is bounded by the longest
+    // straight-line code. Sliced runs are always interpreted,
+    // as compiled code cannot be stopped part way.
+    protected boolean slicing = false;
+    protected MethodHandle[] uncompiled;    // no compiled code, for sliced runs
+
+
+    // CODE INTERPRETATION
     public SVM() {
         this.code = new byte[32768];
         this.cl = 0;
@@ -140,166 +316,1124 @@ public class SVM {
 
     public void interpret(boolean tracing) {
         // Interpret the program starting at offset 0
-        // in the code store.
+        // in the code store, reading and writing on the console.
         // If tracing is true, print each instruction
-        // as it is executed.
-        this.data = new int[32768];
-        this.pc = 0;
-        this.sp = 0;
-        this.fp = 0;
-        this.status = RUNNING;
+        // as it is executed (compiled code is not used).
+        this.interpret(FunIO.console(), tracing);
+    }
+
+    public void interpret(FunIO io, boolean tracing) {
+        // Interpret the program in a pooled context, with the
+        // given IO channels.
+        SVMContext context = this.acquire();
+        try {
+            this.interpret(context, io, tracing);
+        } finally {
+            this.release(context);
+        }
+    }
+
+    public void interpret(SVMContext context, FunIO io, boolean tracing) {
+        // Interpret the program in the given context, which
+        // must be one of this SVM's. Safe to call from many
+        // threads at once, each with its own context and IO.
+        // The output is flushed when the program stops.
+        if (context.program != this) throw new IllegalArgumentException("context of another SVM");
+        this.prepare(tracing);
+        context.reset(this.decoded.length, FUSED_MNEMONIC.length, io);
+        try {
+            this.run(context, 0, 0, 0, tracing);
+        } finally {
+            io.flush();
+            context.io = null;
+        }
+        this.record(context);
+    }
+
+    public SVMContext acquire() {
+        // Return an idle context from the pool, or a new one.
+        SVMContext context = this.pool.poll();
+        return (context != null ? context : new SVMContext(this));
+    }
+
+    public void release(SVMContext context) {
+        // Return a context to the pool once its run is over.
+        // Contexts beyond the size of the pool are dropped.
+        if (context.program == this) this.pool.offer(context);
+    }
+
+    private synchronized void prepare(boolean tracing) {
+        // Decode the code, if changed since the last run, and
+        // compile it if compiling.
+        if (this.decoded == null) {
+            this.decode();
+            this.fusedHits = new long[FUSED_MNEMONIC.length];
+            this.compiled = new MethodHandle[this.decoded.length];
+            this.uncompiled = new MethodHandle[this.decoded.length];
+            this.promoted = new boolean[this.decoded.length];
+            this.callCounts = new long[this.decoded.length];
+            this.loopCounts = new long[this.decoded.length];
+            this.promotions.clear();
+        }
+        if (this.compiling && !tracing) this.compileAll();
+    }
+
+    public SVMContext start(FunIO io) {
+        // Return a pooled context set to run the program in
+        // slices from its start, with the given IO channels.
+        // The SVM must be in sliced mode.
+        if (!this.slicing) throw new IllegalStateException("SVM not in sliced mode");
+        SVMContext context = this.acquire();
+        this.prepare(true);     // as when tracing, without compiled code
+        context.reset(this.decoded.length, FUSED_MNEMONIC.length, io);
+        context.slicing = true;
+        return context;
+    }
+
+    public byte resume(SVMContext context, int budget) {
+        // Run the program in a context returned by start, until
+        // it has made budget calls and loop iterations, or must
+        // wait for input, or stops. Return its status: SUSPENDED
+        // or BLOCKED to be resumed, else HALTED or FAILED, when
+        // the output is flushed and the context may be released.
+        if (context.program != this || !context.slicing) throw new IllegalArgumentException("context not started");
+        context.budget = budget;
+        context.status = RUNNING;
+        try {
+            this.run(context, context.pc, context.fp, context.sp, false);
+        } catch (RuntimeException | Error x) {
+            context.status = FAILED;
+            throw x;
+        } finally {
+            if (context.status == HALTED || context.status == FAILED) {
+                context.io.flush();
+                context.slicing = false;
+                context.io = null;
+            }
+        }
+        if (context.status == HALTED) this.record(context);
+        return context.status;
+    }
+
+    private static boolean mustYield(SVMContext ctx, int c) {
+        // Return true, setting the status, if a sliced run must
+        // stop before calling the procedure or IO routine c.
+        if (c == READ_OFF_SET && !ctx.io.ready()) {
+            ctx.status = BLOCKED;
+            return true;
+        }
+        if (c < IO_BASE && --ctx.budget < 0) {
+            ctx.status = SUSPENDED;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void record(SVMContext context) {
+        // Add the counts of a finished run to the totals.
+        if (context.fusedHits.length != this.fusedHits.length
+                || context.callCounts.length != this.callCounts.length) return;
+        for (int f = 0; f < this.fusedHits.length; f++) this.fusedHits[f] += context.fusedHits[f];
+        for (int w = 0; w < this.callCounts.length; w++) {
+            this.callCounts[w] += context.callCounts[w];
+            this.loopCounts[w] += context.loopCounts[w];
+        }
+    }
+
+    private static boolean reaches(long total, int count, int threshold) {
+        // Return true iff count, a run's count at some word, has
+        // just reached what total, the count of the runs before
+        // it, leaves of threshold. If total alone has passed
+        // threshold, as concurrent runs may leave it, the first
+        // count reaches it.
+        return count == Math.max(1, threshold - total);
+    }
+
+    private int run(SVMContext ctx, int pc, int fp, int sp, boolean tracing) {
+        // Interpret from word index pc with the loop selected
+        // by the caching mode. Return the stack pointer.
+        if (this.caching && !tracing && !ctx.slicing) return this.executeCached(ctx, pc, fp, sp);
+        return this.execute(ctx, pc, fp, sp, tracing);
+    }
+
+    private int execute(SVMContext ctx, int pc, int fp, int sp, boolean tracing) {
+        // Interpret decoded code starting at word index pc,
+        // with the given frame and stack pointers, until the
+        // program halts or until a RETURN finds the return
+        // address RETURN_TO_CALLER. Return the stack pointer.
+        int[] decoded = this.decoded;
+        long[] hits = ctx.fusedHits;
+        int[] data = ctx.data;
+        boolean slicing = ctx.slicing;
+        MethodHandle[] compiled = (slicing ? this.uncompiled : this.compiled);
+        boolean tiering = this.tiering && !tracing && !slicing;
         do {
-            if (tracing) out.println(showInstruction(pc));
-            byte opcode = this.code[this.pc++];
+            if (tracing) out.println(showDecoded(pc));
+            int insn = decoded[pc++];
+            int opcode = insn & 0xFF;
             switch (opcode) {
                 case LOADG -> {
                     // addr of global variable
-                    int d = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    this.data[this.sp++] = this.data[d];
+                    data[sp++] = data[insn >> 8];
                 }
                 case STOREG -> {
                     // addr of global variable
-                    int d = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    this.data[d] = this.data[--this.sp];
+                    data[insn >> 8] = data[--sp];
                 }
                 case LOADL -> {
                     // addr of local variable
-                    int d = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    this.data[this.sp++] = this.data[fp + d];
+                    data[sp++] = data[fp + (insn >> 8)];
                 }
                 case STOREL -> {
                     // addr of local variable
-                    int d = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    this.data[fp + d] = this.data[--this.sp];
+                    data[fp + (insn >> 8)] = data[--sp];
                 }
-                case LOADC -> {
+                case TEEG -> {
+                    // addr of global variable
+                    data[insn >> 8] = data[sp - 1];
+                }
+                case TEEL -> {
                     // addr of local variable
-                    int w = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    this.data[this.sp++] = w;
+                    data[fp + (insn >> 8)] = data[sp - 1];
+                }
+                case LOADC -> {
+                    // constant value
+                    data[sp++] = insn >> 8;
                 }
                 case ADD -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = w1 + w2;
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = w1 + w2;
                 }
                 case SUB -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = w1 - w2;
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = w1 - w2;
                 }
                 case MUL -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = w1 * w2;
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = w1 * w2;
                 }
                 case DIV -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = w1 / w2;
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = w1 / w2;
                 }
                 case CMPEQ -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = (w1 == w2 ? 1 : 0);
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = (w1 == w2 ? 1 : 0);
                 }
                 case CMPLT -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = (w1 < w2 ? 1 : 0);
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = (w1 < w2 ? 1 : 0);
                 }
                 case CMPGT -> {
-                    int w2 = this.data[--this.sp];
-                    int w1 = this.data[--this.sp];
-                    this.data[this.sp++] = (w1 > w2 ? 1 : 0);
+                    int w2 = data[--sp];
+                    int w1 = data[--sp];
+                    data[sp++] = (w1 > w2 ? 1 : 0);
                 }
                 case INV -> {
-                    int w = this.data[--this.sp];
-                    this.data[this.sp++] = (w == 0 ? 1 : 0);
+                    int w = data[--sp];
+                    data[sp++] = (w == 0 ? 1 : 0);
                 }
                 case INC -> {
-                    int w = this.data[--this.sp];
-                    this.data[this.sp++] = w + 1;
+                    int w = data[--sp];
+                    data[sp++] = w + 1;
                 }
                 case HALT -> {
-                    this.status = HALTED;
+                    ctx.status = HALTED;
                 }
                 case JUMP -> {
-                    // target of jump
-                    this.pc = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
+                    // index of jump target
+                    pc = insn >> 8;
                 }
                 case JUMPF -> {
-                    // target of jump
-                    int c = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    int w = this.data[--this.sp];
-
-                    if (w == 0) this.pc = c;
+                    // index of jump target
+                    if (data[--sp] == 0) pc = insn >> 8;
                 }
                 case JUMPT -> {
-                    // target of jump
-                    int c = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
-                    int w = this.data[--this.sp];
-
-                    if (w != 0) this.pc = c;
+                    // index of jump target
+                    if (data[--sp] != 0) pc = insn >> 8;
+                }
+                case JUMPLT -> {
+                    sp -= 2;
+                    if (data[sp] < data[sp + 1]) pc = insn >> 8;
+                }
+                case JUMPGE -> {
+                    sp -= 2;
+                    if (data[sp] >= data[sp + 1]) pc = insn >> 8;
+                }
+                case JUMPGT -> {
+                    sp -= 2;
+                    if (data[sp] > data[sp + 1]) pc = insn >> 8;
+                }
+                case JUMPLE -> {
+                    sp -= 2;
+                    if (data[sp] <= data[sp + 1]) pc = insn >> 8;
+                }
+                case JUMPEQ -> {
+                    sp -= 2;
+                    if (data[sp] == data[sp + 1]) pc = insn >> 8;
+                }
+                case JUMPNE -> {
+                    sp -= 2;
+                    if (data[sp] != data[sp + 1]) pc = insn >> 8;
                 }
                 case CALL -> {
-                    // address of callee
-                    int c = this.code[this.pc++] << 8 | (this.code[this.pc++] & 0xFF);
+                    // index of callee, or offset of IO routine
+                    int c = insn >> 8;
+                    if (slicing && mustYield(ctx, c)) {
+                        pc--;
+                        break;
+                    }
 
                     if (c >= IO_BASE) {
-                        callIO(c);
+                        sp = ctx.callIO(c, sp);
                         break;
                     }
-                    this.data[this.sp++] = this.fp;  // dyn link
-                    this.data[this.sp++] = this.pc;  // return addr
-                    this.fp = this.sp - 2;
-                    this.pc = c;
+                    if (tiering && reaches(this.callCounts[c], ++ctx.callCounts[c], this.callThreshold))
+                        this.promote(this.offsets[c], "calls");
+                    data[sp++] = fp;  // dyn link
+                    data[sp++] = pc;  // return addr
+                    if (compiled[c] != null) {
+                        sp = runCompiled(ctx, compiled[c], sp - 2, sp, -1);
+                        break;
+                    }
+                    fp = sp - 2;
+                    pc = c;
+                }
+                case TCALL -> {
+                    // index of callee, which takes over the frame
+                    int c = insn >> 8;
+                    if (slicing && mustYield(ctx, c)) {
+                        pc--;
+                        break;
+                    }
+                    sp = this.reuseFrame(data, c, fp, sp);
+                    if (tiering && reaches(this.callCounts[c], ++ctx.callCounts[c], this.callThreshold))
+                        this.promote(this.offsets[c], "calls");
+                    if (compiled[c] != null) {
+                        // The callee returns on behalf of this frame.
+                        int dl = data[fp];
+                        int ra = data[fp + 1];
+                        sp = runCompiled(ctx, compiled[c], fp, sp, this.tailEntry(c));
+                        fp = dl;
+                        pc = ra;
+                        if (ra == RETURN_TO_CALLER) return sp;
+                        break;
+                    }
+                    pc = this.body(c);
                 }
                 case RETURN -> {
-                    int r = this.code[this.pc++];  // result size
-                    int dl = this.data[this.fp];   // dyn link
-                    int ra = this.data[this.fp + 1]; // return addr
+                    int r = insn >> 8;      // result size
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
                     // Shift result down to top of
                     // caller's frame:
-                    for (int i = 0; i < r; i++) this.data[this.fp + i] = this.data[this.sp - r + i];
+                    for (int i = 0; i < r; i++) data[fp + i] = data[sp - r + i];
 
-                    this.sp = this.fp + r;
-                    this.fp = dl;
-                    this.pc = ra;
+                    sp = fp + r;
+                    fp = dl;
+                    pc = ra;
+                    if (ra == RETURN_TO_CALLER) return sp;
                 }
                 case COPYARG -> {
-                    int s = this.code[this.pc++];  // args size
-                    int dl = this.data[this.fp];   // dyn link
-                    int ra = this.data[this.fp + 1]; // return addr
+                    int s = insn >> 8;      // args size
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
                     // Shift arguments up by 2 words,
-                    // to make room for link this.data:
-                    for (int i = 0; i < s; i++) this.data[this.fp - i + 1] = this.data[this.fp - i - 1];
+                    // to make room for link data:
+                    for (int i = 0; i < s; i++) data[fp - i + 1] = data[fp - i - 1];
+
+                    // Move link data under arguments:
+                    fp -= s;
+                    data[fp] = dl;
+                    data[fp + 1] = ra;
+                }
+                case POP -> {
+                    // number of words
+                    sp -= insn >> 8;
+                }
+                case INCL -> {
+                    data[fp + (insn >> 8)] += decoded[pc++];
+                    hits[INCL - FUSED]++;
+                }
+                case INCG -> {
+                    data[insn >> 8] += decoded[pc++];
+                    hits[INCG - FUSED]++;
+                }
+                case ADDLC -> {
+                    data[sp++] = data[fp + (insn >> 8)] + decoded[pc++];
+                    hits[ADDLC - FUSED]++;
+                }
+                case JLCLT -> {
+                    pc = (data[fp + (insn >> 8)] < decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCLT - FUSED]++;
+                }
+                case JLCGE -> {
+                    pc = (data[fp + (insn >> 8)] >= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCGE - FUSED]++;
+                }
+                case JLCGT -> {
+                    pc = (data[fp + (insn >> 8)] > decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCGT - FUSED]++;
+                }
+                case JLCLE -> {
+                    pc = (data[fp + (insn >> 8)] <= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCLE - FUSED]++;
+                }
+                case JLCEQ -> {
+                    pc = (data[fp + (insn >> 8)] == decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCEQ - FUSED]++;
+                }
+                case JLCNE -> {
+                    pc = (data[fp + (insn >> 8)] != decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCNE - FUSED]++;
+                }
+                case JGCLT -> {
+                    pc = (data[insn >> 8] < decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCLT - FUSED]++;
+                }
+                case JGCGE -> {
+                    pc = (data[insn >> 8] >= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCGE - FUSED]++;
+                }
+                case JGCGT -> {
+                    pc = (data[insn >> 8] > decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCGT - FUSED]++;
+                }
+                case JGCLE -> {
+                    pc = (data[insn >> 8] <= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCLE - FUSED]++;
+                }
+                case JGCEQ -> {
+                    pc = (data[insn >> 8] == decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCEQ - FUSED]++;
+                }
+                case JGCNE -> {
+                    pc = (data[insn >> 8] != decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCNE - FUSED]++;
+                }
+                case JLLLT -> {
+                    pc = (data[fp + (insn >> 8)] < data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLLT - FUSED]++;
+                }
+                case JLLGE -> {
+                    pc = (data[fp + (insn >> 8)] >= data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLGE - FUSED]++;
+                }
+                case JLLGT -> {
+                    pc = (data[fp + (insn >> 8)] > data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLGT - FUSED]++;
+                }
+                case JLLLE -> {
+                    pc = (data[fp + (insn >> 8)] <= data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLLE - FUSED]++;
+                }
+                case JLLEQ -> {
+                    pc = (data[fp + (insn >> 8)] == data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLEQ - FUSED]++;
+                }
+                case JLLNE -> {
+                    pc = (data[fp + (insn >> 8)] != data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLNE - FUSED]++;
+                }
+                case TABLE -> {
+                    // decoded[pc] is n, followed by n+1 JUMP words
+                    int i = data[--sp] - (insn >> 8);
+                    int n = decoded[pc];
+                    pc = decoded[(i >= 0 && i < n) ? pc + 2 + i : pc + 1] >> 8;
+                }
+                case LOOKUP -> {
+                    // decoded[pc] is the default JUMP, followed by
+                    // n entries of RANGE l, h, JUMP words
+                    int w = data[--sp];
+                    int target = decoded[pc] >> 8;
+                    int lo = 0, hi = (insn >> 8) - 1;
+                    while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        int e = pc + 1 + 3 * mid;
+                        if (w < decoded[e] >> 8) hi = mid - 1;
+                        else if (w > decoded[e + 1]) lo = mid + 1;
+                        else {
+                            target = decoded[e + 2] >> 8;
+                            break;
+                        }
+                    }
+                    pc = target;
+                }
+                case LOOP -> {
+                    if (slicing && --ctx.budget < 0) {
+                        ctx.status = SUSPENDED;
+                        pc--;
+                        break;
+                    }
+                    if (!tiering || !reaches(this.loopCounts[pc - 1], ++ctx.loopCounts[pc - 1], this.loopThreshold))
+                        break;
+                    // On-stack replacement: continue this activation
+                    // in compiled code, then return from it.
+                    MethodHandle mh = this.promote(insn >> 8, "loop");
+                    if (mh == null) break;
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
+                    sp = runCompiled(ctx, mh, fp, sp, insn >> 8);
+                    fp = dl;
+                    pc = ra;
+                    if (ra == RETURN_TO_CALLER) return sp;
+                }
+                default -> {
+                    out.println("Illegal instruction" + opcode);
+                    ctx.status = FAILED;
+                }
+            }
+        } while (ctx.status == RUNNING);
+        ctx.pc = pc;
+        ctx.sp = sp;
+        ctx.fp = fp;
+        return sp;
+    }
+
+    // TOP-OF-STACK CACHING
+    // In caching mode the interpreter keeps the top word of the
+    // stack in a local variable, tos, rather than in data[sp-1]
+    // (its home), which is left stale. An instruction that only
+    // works on the stack top, such as INV, then touches no
+    // memory, and a binary operation reads one word instead of
+    // reading two and writing one. The cached word is written
+    // home (spilled) before anything that reads the data store
+    // by address at or near the stack top: a push, a call, a
+    // return, a COPYARG, an IO routine or a fused instruction
+    // on locals; it is reloaded after anything that may change
+    // its home. While the stack is empty, the word at 0 serves
+    // as a scratch home.
+    private static int home(int sp) {
+        // Return the index of the home of the cached word.
+        return Math.max(sp - 1, 0);
+    }
+
+    private int executeCached(SVMContext ctx, int pc, int fp, int sp) {
+        // Interpret decoded code as execute does (without
+        // tracing), caching the stack top in tos.
+        int[] decoded = this.decoded;
+        long[] hits = ctx.fusedHits;
+        int[] data = ctx.data;
+        MethodHandle[] compiled = this.compiled;
+        boolean tiering = this.tiering;
+        int tos = data[home(sp)];
+        do {
+            int insn = decoded[pc++];
+            int opcode = insn & 0xFF;
+            switch (opcode) {
+                case LOADG -> {
+                    data[home(sp)] = tos;
+                    sp++;
+                    tos = data[insn >> 8];
+                }
+                case STOREG -> {
+                    data[insn >> 8] = tos;
+                    tos = data[--sp - 1];
+                }
+                case LOADL -> {
+                    data[home(sp)] = tos;
+                    sp++;
+                    tos = data[fp + (insn >> 8)];
+                }
+                case STOREL -> {
+                    // The new top may be the word stored.
+                    data[fp + (insn >> 8)] = tos;
+                    tos = data[--sp - 1];
+                }
+                case TEEG -> {
+                    data[insn >> 8] = tos;
+                }
+                case TEEL -> {
+                    data[fp + (insn >> 8)] = tos;
+                }
+                case LOADC -> {
+                    data[home(sp)] = tos;
+                    sp++;
+                    tos = insn >> 8;
+                }
+                case ADD -> tos = data[--sp - 1] + tos;
+                case SUB -> tos = data[--sp - 1] - tos;
+                case MUL -> tos = data[--sp - 1] * tos;
+                case DIV -> tos = data[--sp - 1] / tos;
+                case CMPEQ -> tos = (data[--sp - 1] == tos ? 1 : 0);
+                case CMPLT -> tos = (data[--sp - 1] < tos ? 1 : 0);
+                case CMPGT -> tos = (data[--sp - 1] > tos ? 1 : 0);
+                case INV -> tos = (tos == 0 ? 1 : 0);
+                case INC -> tos++;
+                case HALT -> {
+                    ctx.status = HALTED;
+                }
+                case JUMP -> {
+                    pc = insn >> 8;
+                }
+                case JUMPF -> {
+                    int w = tos;
+                    tos = data[--sp - 1];
+                    if (w == 0) pc = insn >> 8;
+                }
+                case JUMPT -> {
+                    int w = tos;
+                    tos = data[--sp - 1];
+                    if (w != 0) pc = insn >> 8;
+                }
+                case JUMPLT -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 < w2) pc = insn >> 8;
+                }
+                case JUMPGE -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 >= w2) pc = insn >> 8;
+                }
+                case JUMPGT -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 > w2) pc = insn >> 8;
+                }
+                case JUMPLE -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 <= w2) pc = insn >> 8;
+                }
+                case JUMPEQ -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 == w2) pc = insn >> 8;
+                }
+                case JUMPNE -> {
+                    int w1 = data[sp - 2], w2 = tos;
+                    sp -= 2;
+                    tos = data[sp - 1];
+                    if (w1 != w2) pc = insn >> 8;
+                }
+                case CALL -> {
+                    int c = insn >> 8;
+                    data[home(sp)] = tos;
+                    if (c >= IO_BASE) {
+                        sp = ctx.callIO(c, sp);
+                        tos = data[home(sp)];
+                        break;
+                    }
+                    if (tiering && reaches(this.callCounts[c], ++ctx.callCounts[c], this.callThreshold))
+                        this.promote(this.offsets[c], "calls");
+                    data[sp++] = fp;  // dyn link
+                    data[sp++] = pc;  // return addr
+                    if (compiled[c] != null) {
+                        sp = runCompiled(ctx, compiled[c], sp - 2, sp, -1);
+                        tos = data[home(sp)];
+                        break;
+                    }
+                    fp = sp - 2;
+                    pc = c;
+                    tos = data[sp - 1];
+                }
+                case TCALL -> {
+                    int c = insn >> 8;
+                    data[sp - 1] = tos;
+                    sp = this.reuseFrame(data, c, fp, sp);
+                    if (tiering && reaches(this.callCounts[c], ++ctx.callCounts[c], this.callThreshold))
+                        this.promote(this.offsets[c], "calls");
+                    if (compiled[c] != null) {
+                        int dl = data[fp];
+                        int ra = data[fp + 1];
+                        sp = runCompiled(ctx, compiled[c], fp, sp, this.tailEntry(c));
+                        fp = dl;
+                        pc = ra;
+                        if (ra == RETURN_TO_CALLER) return sp;
+                        tos = data[home(sp)];
+                        break;
+                    }
+                    pc = this.body(c);
+                    tos = data[sp - 1];
+                }
+                case RETURN -> {
+                    int r = insn >> 8;      // result size
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
+                    data[sp - 1] = tos;
+                    for (int i = 0; i < r; i++) data[fp + i] = data[sp - r + i];
+
+                    sp = fp + r;
+                    fp = dl;
+                    pc = ra;
+                    if (ra == RETURN_TO_CALLER) return sp;
+                    tos = data[home(sp)];
+                }
+                case COPYARG -> {
+                    int s = insn >> 8;      // args size
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
+                    data[sp - 1] = tos;
+                    for (int i = 0; i < s; i++) data[fp - i + 1] = data[fp - i - 1];
 
-                    // Move link this.data under arguments:
-                    this.fp -= s;
-                    this.data[this.fp] = dl;
-                    this.data[this.fp + 1] = ra;
+                    fp -= s;
+                    data[fp] = dl;
+                    data[fp + 1] = ra;
+                    tos = data[sp - 1];
+                }
+                case POP -> {
+                    sp -= insn >> 8;
+                    tos = data[home(sp)];
+                }
+                case INCL -> {
+                    data[sp - 1] = tos;
+                    data[fp + (insn >> 8)] += decoded[pc++];
+                    tos = data[sp - 1];
+                    hits[INCL - FUSED]++;
+                }
+                case INCG -> {
+                    data[insn >> 8] += decoded[pc++];
+                    hits[INCG - FUSED]++;
+                }
+                case ADDLC -> {
+                    data[sp - 1] = tos;
+                    sp++;
+                    tos = data[fp + (insn >> 8)] + decoded[pc++];
+                    hits[ADDLC - FUSED]++;
+                }
+                case JLCLT -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] < decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCLT - FUSED]++;
+                }
+                case JLCGE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] >= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCGE - FUSED]++;
+                }
+                case JLCGT -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] > decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCGT - FUSED]++;
+                }
+                case JLCLE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] <= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCLE - FUSED]++;
+                }
+                case JLCEQ -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] == decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCEQ - FUSED]++;
+                }
+                case JLCNE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] != decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLCNE - FUSED]++;
+                }
+                case JGCLT -> {
+                    pc = (data[insn >> 8] < decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCLT - FUSED]++;
+                }
+                case JGCGE -> {
+                    pc = (data[insn >> 8] >= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCGE - FUSED]++;
+                }
+                case JGCGT -> {
+                    pc = (data[insn >> 8] > decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCGT - FUSED]++;
+                }
+                case JGCLE -> {
+                    pc = (data[insn >> 8] <= decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCLE - FUSED]++;
+                }
+                case JGCEQ -> {
+                    pc = (data[insn >> 8] == decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCEQ - FUSED]++;
+                }
+                case JGCNE -> {
+                    pc = (data[insn >> 8] != decoded[pc]) ? decoded[pc + 1] : pc + 2;
+                    hits[JGCNE - FUSED]++;
+                }
+                case JLLLT -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] < data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLLT - FUSED]++;
+                }
+                case JLLGE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] >= data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLGE - FUSED]++;
+                }
+                case JLLGT -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] > data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLGT - FUSED]++;
+                }
+                case JLLLE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] <= data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLLE - FUSED]++;
+                }
+                case JLLEQ -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] == data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLEQ - FUSED]++;
+                }
+                case JLLNE -> {
+                    data[sp - 1] = tos;
+                    pc = (data[fp + (insn >> 8)] != data[fp + decoded[pc]]) ? decoded[pc + 1] : pc + 2;
+                    hits[JLLNE - FUSED]++;
+                }
+                case TABLE -> {
+                    int i = tos - (insn >> 8);
+                    tos = data[--sp - 1];
+                    int n = decoded[pc];
+                    pc = decoded[(i >= 0 && i < n) ? pc + 2 + i : pc + 1] >> 8;
+                }
+                case LOOKUP -> {
+                    int w = tos;
+                    tos = data[--sp - 1];
+                    int target = decoded[pc] >> 8;
+                    int lo = 0, hi = (insn >> 8) - 1;
+                    while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        int e = pc + 1 + 3 * mid;
+                        if (w < decoded[e] >> 8) hi = mid - 1;
+                        else if (w > decoded[e + 1]) lo = mid + 1;
+                        else {
+                            target = decoded[e + 2] >> 8;
+                            break;
+                        }
+                    }
+                    pc = target;
+                }
+                case LOOP -> {
+                    if (!tiering || !reaches(this.loopCounts[pc - 1], ++ctx.loopCounts[pc - 1], this.loopThreshold))
+                        break;
+                    MethodHandle mh = this.promote(insn >> 8, "loop");
+                    if (mh == null) break;
+                    int dl = data[fp];      // dyn link
+                    int ra = data[fp + 1];  // return addr
+                    data[sp - 1] = tos;
+                    sp = runCompiled(ctx, mh, fp, sp, insn >> 8);
+                    fp = dl;
+                    pc = ra;
+                    if (ra == RETURN_TO_CALLER) return sp;
+                    tos = data[home(sp)];
                 }
                 default -> {
                     out.println("Illegal instruction" + opcode);
-                    this.status = FAILED;
+                    ctx.status = FAILED;
                 }
             }
-        } while (this.status == RUNNING);
+        } while (ctx.status == RUNNING);
+        data[home(sp)] = tos;
+        ctx.pc = pc;
+        ctx.sp = sp;
+        ctx.fp = fp;
+        return sp;
     }
 
-    private void callIO(int c) {
-        // Execute a call to an IO routine.
-        switch (c) {
-            case READ_OFF_SET -> {
-                out.print("? ");
-                int w = in.nextInt();
-                this.data[this.sp++] = w;
+    // COMPILED CODE
+    // In compiling mode each procedure is translated by
+    // SVMCompiler into a JVM method, which the interpreter
+    // calls in place of interpreting the procedure's code.
+    // A compiled procedure runs with its own frame and stack
+    // pointers, and returns the stack pointer left by its
+    // RETURN. Calls made from compiled code push the return
+    // address RETURN_TO_CALLER, so that a callee which is
+    // not compiled is interpreted only until it returns.
+    private void compileAll() {
+        // Compile every procedure in the code store, leaving
+        // interpreted any that cannot be translated.
+        for (int entry : this.entries) this.promote(entry, "compiled before running");
+    }
+
+    private synchronized MethodHandle promote(int c, String reason) {
+        // Compile the procedure containing byte offset c, unless
+        // already attempted. Return its compiled code, or null.
+        int p = Arrays.binarySearch(this.entries, c);
+        if (p < 0) p = -p - 2;
+        if (p < 0) return null;
+        int entry = this.entries[p];
+        int end = (p + 1 < this.entries.length ? this.entries[p + 1] : this.cl);
+        int w = this.index[entry];
+        if (this.promoted[w]) return this.compiled[w];
+        this.promoted[w] = true;
+
+        // Besides its loops, a compiled procedure is entered after
+        // its COPYARG by a tail call.
+        int[] osr = IntStream.concat(IntStream.of(this.offsets[this.body(w)]), Arrays.stream(this.osrEntries))
+                .filter(o -> o > entry && o < end).sorted().distinct().toArray();
+        MethodHandle mh = SVMCompiler.compile(this.code, entry, end, osr);
+        this.compiled[w] = mh;
+        String event = switch (reason) {
+            case "calls" -> "reached " + this.callThreshold + " calls";
+            case "loop" -> "loop at " + c + " reached " + this.loopThreshold + " iterations";
+            default -> reason;
+        };
+        this.promotions.add(String.format("%-12s %s: %s", this.procedureName(entry), event,
+                (mh != null ? "compiled" : "not compilable")));
+        return mh;
+    }
+
+    private String procedureName(int entry) {
+        return this.procedureNames.getOrDefault(entry, "@" + entry);
+    }
+
+    protected int[] procedureEntries() {
+        // Return the sorted byte offsets of all procedures,
+        // i.e. of all targets of CALL and TCALL instructions.
+        boolean[] entry = new boolean[this.cl + 1];
+        for (int c = 0; c < this.cl; c += BYTES[this.code[c]]) {
+            if (this.code[c] != CALL && this.code[c] != TCALL) continue;
+            int operand = this.code[c + 1] << 8 | (this.code[c + 2] & 0xFF);
+            if (operand < IO_BASE) entry[operand] = true;
+        }
+        return IntStream.range(0, this.cl).filter(c -> entry[c]).toArray();
+    }
+
+    private static int runCompiled(SVMContext ctx, MethodHandle mh, int fp, int sp, int osr) {
+        // Run a compiled procedure, whose frame is at fp, from
+        // its start (osr = -1) or from the loop at offset osr.
+        try {
+            return (int) mh.invokeExact(ctx, ctx.data, fp, sp, osr);
+        } catch (RuntimeException | Error x) {
+            throw x;
+        } catch (Throwable x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private int body(int w) {
+        // Return the word index of the procedure at word w, past
+        // its COPYARG if it has one.
+        return ((this.decoded[w] & 0xFF) == COPYARG ? w + 1 : w);
+    }
+
+    private int tailEntry(int w) {
+        // Return the offset at which a tail call enters the
+        // compiled code of the procedure at word w, or -1 for
+        // its first instruction.
+        return (this.body(w) > w ? this.offsets[w + 1] : -1);
+    }
+
+    private int reuseFrame(int[] data, int w, int fp, int sp) {
+        // Move the arguments of a tail call to the procedure at
+        // word w from the stack top into the frame at fp, just
+        // above its link data, as its COPYARG would. Return the
+        // new stack pointer.
+        int s = (this.body(w) > w ? this.decoded[w] >> 8 : 0);
+        System.arraycopy(data, sp - s, data, fp + 2, s);
+        return fp + 2 + s;
+    }
+
+    static int tailInvoke(SVMContext ctx, int c, int fp, int sp) {
+        // Tail-call the procedure at byte offset c from compiled
+        // code, handing it the frame at fp. Return the stack
+        // pointer left by its RETURN.
+        SVM vm = ctx.program;
+        int w = vm.index[c];
+        sp = vm.reuseFrame(ctx.data, w, fp, sp);
+        if (vm.tiering && reaches(vm.callCounts[w], ++ctx.callCounts[w], vm.callThreshold)) vm.promote(c, "calls");
+        if (vm.compiled[w] != null) return runCompiled(ctx, vm.compiled[w], fp, sp, vm.tailEntry(w));
+        ctx.data[fp + 1] = RETURN_TO_CALLER;
+        return vm.run(ctx, vm.body(w), fp, sp, false);
+    }
+
+    static int invoke(SVMContext ctx, int c, int fp, int sp) {
+        // Call the procedure at byte offset c from compiled
+        // code, with its frame at fp. Return the stack pointer
+        // left by its RETURN.
+        SVM vm = ctx.program;
+        int w = vm.index[c];
+        if (vm.tiering && reaches(vm.callCounts[w], ++ctx.callCounts[w], vm.callThreshold)) vm.promote(c, "calls");
+        if (vm.compiled[w] != null) return runCompiled(ctx, vm.compiled[w], fp, sp, -1);
+        return vm.run(ctx, w, fp, sp, false);
+    }
+
+
+    // CODE DECODING
+    protected void decode() {
+        // Decode the byte-codes in the code store into one
+        // word per instruction (plus the extra operand words of
+        // any superinstructions), resolving operands and
+        // converting jump/call targets into word indices.
+        int n = 0;
+        for (int c = 0; c < this.cl; c += BYTES[this.code[c]]) n++;
+
+        // First pass: split the code into instructions and
+        // mark every byte offset that is a jump/call target.
+        byte[] ops = new byte[n];
+        int[] args = new int[n];
+        int[] args2 = new int[n];
+        int[] at = new int[n];
+        boolean[] target = new boolean[this.cl + 1];
+        for (int c = 0, i = 0; c < this.cl; c += BYTES[this.code[c]], i++) {
+            byte opcode = this.code[c];
+            int operand = switch (BYTES[opcode]) {
+                case 2 -> this.code[c + 1];
+                case 3, 5 -> this.code[c + 1] << 8 | (this.code[c + 2] & 0xFF);
+                default -> 0;
+            };
+            if (BYTES[opcode] == 5) args2[i] = this.code[c + 3] << 8 | (this.code[c + 4] & 0xFF);
+            if (isTransfer(opcode, operand)) target[operand] = true;
+            ops[i] = opcode;
+            args[i] = operand;
+            at[i] = c;
+        }
+
+        // Second pass: emit the decoded words, fusing any
+        // sequence that has no jump target inside it.
+        this.index = new int[this.cl + 1];
+        this.decoded = new int[2 * n];
+        this.offsets = new int[2 * n];
+        this.fusedSites = new int[FUSED_MNEMONIC.length];
+        this.entries = (this.entryTable != null ? this.entryTable : this.procedureEntries());
+        int[] loops = new int[n];
+        int loopCount = 0;
+        int plain = 0;      // data instructions left of a TABLE/LOOKUP
+        int w = 0;
+        for (int i = 0; i < n; ) {
+            this.index[at[i]] = w;
+            this.offsets[w] = at[i];
+            if (plain > 0 || ops[i] == TABLE || ops[i] == LOOKUP) {
+                // A TABLE or LOOKUP and the JUMP and RANGE instructions
+                // that are its data are decoded as they are, with the
+                // second operand of TABLE and RANGE in a word of its own.
+                if (plain > 0) plain--;
+                else plain = (ops[i] == TABLE ? args2[i] + 1 : 2 * args[i] + 1);
+                this.decoded[w++] = args[i] << 8 | ops[i];
+                if (BYTES[ops[i]] == 5) this.decoded[w++] = args2[i];
+                i++;
+                continue;
+            }
+            int fused = this.fusing ? fuse(ops, args, at, target, i) : -1;
+            int last = (fused < 0 ? i : i + FUSED_LENGTH[fused - FUSED] - 1);
+            if ((this.tiering || this.slicing) && isJump(ops[last]) && args[last] <= at[i]) {
+                // A backward jump: count the loop's iterations.
+                loops[loopCount++] = at[i];
+                this.decoded[w++] = at[i] << 8 | LOOP;
+                this.offsets[w] = at[i];
+            }
+            if (fused < 0) {
+                this.decoded[w++] = args[i] << 8 | ops[i];
+                i++;
+                continue;
             }
-            case WRITE_OFF_SET -> {
-                int w = this.data[--this.sp];
-                out.println(w);
+            this.fusedSites[fused - FUSED]++;
+            switch (fused) {
+                case INCL, INCG, ADDLC -> {
+                    int k = args[i + 1];
+                    if (ops[i + 2] == SUB) k = -k;
+                    this.decoded[w++] = args[i] << 8 | fused;
+                    this.decoded[w++] = k;
+                }
+                default -> {
+                    int d = args[i], e = args[i + 1];
+                    if (ops[i] == LOADC) {
+                        d = args[i + 1];
+                        e = args[i];
+                    }
+                    this.decoded[w++] = d << 8 | fused;
+                    this.decoded[w++] = e;
+                    this.decoded[w++] = args[i + 2];
+                }
             }
+            i += FUSED_LENGTH[fused - FUSED];
         }
+        this.index[this.cl] = w;
+
+        this.osrEntries = Arrays.copyOf(loops, loopCount);
+
+        // Third pass: convert jump/call targets into word indices.
+        for (int i = 0; i < w; ) {
+            int opcode = this.decoded[i] & 0xFF;
+            int operand = this.decoded[i] >> 8;
+            if (opcode == LOOP) {
+                i++;
+            } else if (opcode == TABLE || opcode == RANGE) {
+                i += 2;
+            } else if (opcode >= JLCLT) {
+                this.decoded[i + 2] = this.index[this.decoded[i + 2]];
+                i += 3;
+            } else if (opcode >= FUSED) {
+                i += 2;
+            } else {
+                if (isTransfer((byte) opcode, operand))
+                    this.decoded[i] = this.index[operand] << 8 | opcode;
+                i++;
+            }
+        }
+        this.decoded = Arrays.copyOf(this.decoded, w);
+        this.offsets = Arrays.copyOf(this.offsets, w);
+    }
+
+    static boolean isTransfer(byte opcode, int operand) {
+        // Return true iff the instruction transfers control to a
+        // code offset given by its operand.
+        return switch (opcode) {
+            case JUMP, JUMPF, JUMPT, JUMPLT, JUMPGE, JUMPGT, JUMPLE, JUMPEQ, JUMPNE -> true;
+            case CALL -> operand < IO_BASE;
+            case TCALL -> true;
+            default -> false;
+        };
+    }
+
+    static boolean isJump(byte opcode) {
+        // Return true iff the instruction is a jump, conditional
+        // or not, within its procedure.
+        return opcode != CALL && opcode != TCALL && isTransfer(opcode, 0);
+    }
+
+    private static int fuse(byte[] ops, int[] args, int[] at, boolean[] target, int i) {
+        // Return the superinstruction replacing the instructions
+        // starting at i, or -1 if there is none.
+        if (i + 2 >= ops.length || target[at[i + 1]] || target[at[i + 2]]) return -1;
+        byte op0 = ops[i], op1 = ops[i + 1], op2 = ops[i + 2];
+        boolean arith = (op2 == ADD || op2 == SUB);
+
+        if (i + 3 < ops.length && !target[at[i + 3]]) {
+            byte op3 = ops[i + 3];
+            if (arith && op1 == LOADC && args[i] == args[i + 3]) {
+                if (op0 == LOADL && op3 == STOREL) return INCL;
+                if (op0 == LOADG && op3 == STOREG) return INCG;
+            }
+        }
+        if (op2 >= JUMPLT && op2 <= JUMPNE) {
+            int cc = op2 - JUMPLT;
+            if (op0 == LOADL && op1 == LOADC) return JLCLT + cc;
+            if (op0 == LOADG && op1 == LOADC) return JGCLT + cc;
+            if (op0 == LOADL && op1 == LOADL) return JLLLT + cc;
+            if (op0 == LOADC && op1 == LOADL) return JLCLT + reverse(cc);
+            if (op0 == LOADC && op1 == LOADG) return JGCLT + reverse(cc);
+        }
+        if (arith && op0 == LOADL && op1 == LOADC) return ADDLC;
+        return -1;
+    }
+
+    static byte negation(byte jump) {
+        // Return the conditional jump taken exactly when the
+        // given conditional jump is not.
+        return switch (jump) {
+            case JUMPF -> JUMPT;
+            case JUMPT -> JUMPF;
+            default -> (byte) (JUMPLT + ((jump - JUMPLT) ^ 1));
+        };
+    }
+
+    private static int reverse(int cc) {
+        // Return the condition cc with its operands swapped.
+        return switch (cc) {
+            case LT -> GT;
+            case GT -> LT;
+            case GE -> LE;
+            case LE -> GE;
+            default -> cc;
+        };
     }
 
 
@@ -328,37 +1462,80 @@ public class SVM {
                 int operand = this.code[c++] << 8 | (this.code[c++] & 0xFF);
                 line += operand;
             }
+            case 5 -> {
+                int operand1 = this.code[c++] << 8 | (this.code[c++] & 0xFF);
+                int operand2 = this.code[c++] << 8 | (this.code[c++] & 0xFF);
+                line += operand1 + " " + operand2;
+            }
         }
         return line;
     }
 
 
-    // STACK DISPLAY
-    public String showStack() {
-        // Return a textual representation of the stack contents.
-        StringBuilder show = new StringBuilder();
-        int dl = this.fp;
-        for (int a = this.sp - 1; a >= 0; a--) {
-            show.append(String.format("%6d: %6d\n", a, this.data[a]));
+    private String showDecoded(int w) {
+        // Return a textual representation of the decoded
+        // instruction at word index w.
+        int opcode = this.decoded[w] & 0xFF;
+        if (opcode < FUSED) return showInstruction(this.offsets[w]);
+        if (opcode == LOOP) return String.format("%6d: LOOP    %d", this.offsets[w], this.decoded[w] >> 8);
 
-            if (a == dl) {
-                show.append("        ------\n");
-                dl = this.data[a];
-            }
+        String line = String.format("%6d: %s%d %d", this.offsets[w],
+                FUSED_MNEMONIC[opcode - FUSED], this.decoded[w] >> 8, this.decoded[w + 1]);
+        if (opcode >= JLCLT) line += " " + this.offsets[this.decoded[w + 2]];
+        return line;
+    }
+
+    public String showFusion() {
+        // Return a report of the superinstructions decoded,
+        // and how often they were executed by all runs so far.
+        StringBuilder report = new StringBuilder();
+        long saved = 0;
+        for (int f = 0; f < FUSED_MNEMONIC.length; f++) {
+            if (this.fusedSites == null || this.fusedSites[f] == 0) continue;
+            long hits = (this.fusedHits != null ? this.fusedHits[f] : 0);
+            long dispatches = hits * (FUSED_LENGTH[f] - 1);
+            saved += dispatches;
+            report.append(String.format("%s %4d sites %12d executions %12d dispatches saved\n",
+                    FUSED_MNEMONIC[f], this.fusedSites[f], hits, dispatches));
+        }
+        report.append(String.format("total dispatches saved %d\n", saved));
+        return report.toString();
+    }
+
+
+    public String showTiers() {
+        // Return a report of the calls and tier of each
+        // procedure over all runs so far, and of the promotions
+        // made since the code was last changed.
+        StringBuilder report = new StringBuilder();
+        if (this.entries == null || this.compiled == null) return "";
+        for (int entry : this.entries) {
+            int w = this.index[entry];
+            report.append(String.format("%-12s %6d: %10d calls  %s\n", this.procedureName(entry), entry,
+                    this.callCounts[w], (this.compiled[w] != null ? "compiled" : "interpreted")));
         }
-        return show.toString();
+        for (String promotion : this.promotions) report.append(promotion).append("\n");
+        return report.toString();
     }
 
 
     // CODE EMISSION
+    private void changed() {
+        // Discard what was derived from the code before a change.
+        this.decoded = null;
+        this.entryTable = null;
+    }
+
     public void emit1(byte opcode) {
         // Add a 1 byte instruction to the code.
+        this.changed();
         this.code[this.cl++] = opcode;
     }
 
     public void emit11(byte opcode,
                        int operand) {
         // Add a 1+1 byte instruction to the code.
+        this.changed();
         this.code[this.cl++] = opcode;
         this.code[this.cl++] = (byte) operand;
     }
@@ -366,17 +1543,79 @@ public class SVM {
     public void emit12(byte opcode,
                        int operand) {
         // Add a 1+2 byte instruction to the code.
+        this.changed();
         this.code[this.cl++] = opcode;
         this.code[this.cl++] = (byte) (operand >> 8);
         this.code[this.cl++] = (byte) (operand & 0xFF);
     }
 
+    public void emit122(byte opcode,
+                        int operand1, int operand2) {
+        // Add a 1+2+2 byte instruction to the code.
+        this.changed();
+        this.code[this.cl++] = opcode;
+        this.code[this.cl++] = (byte) (operand1 >> 8);
+        this.code[this.cl++] = (byte) (operand1 & 0xFF);
+        this.code[this.cl++] = (byte) (operand2 >> 8);
+        this.code[this.cl++] = (byte) (operand2 & 0xFF);
+    }
+
     public void patch12(int addr, int operand) {
         // Patch an operand into a 1+2 byte instruction.
+        this.changed();
         this.code[addr + 1] = (byte) (operand >> 8);
         this.code[addr + 2] = (byte) (operand & 0xFF);
     }
 
+    public void setCompiling(boolean compiling) {
+        // Enable or disable compilation of procedures to JVM code.
+        this.compiling = compiling;
+        this.decoded = null;
+    }
+
+    public void setTiering(boolean tiering, int callThreshold, int loopThreshold) {
+        // Enable or disable tiered execution, in which a procedure
+        // is compiled after callThreshold calls, or when one of
+        // its loops has run loopThreshold iterations.
+        this.tiering = tiering;
+        this.callThreshold = callThreshold;
+        this.loopThreshold = loopThreshold;
+        this.decoded = null;
+    }
+
+    public void setSlicing(boolean slicing) {
+        // Enable or disable sliced runs, started by start and
+        // continued by resume.
+        this.slicing = slicing;
+        this.decoded = null;
+    }
+
+    public void setGlobals(int globals) {
+        // Record the number of global variables.
+        this.globals = globals;
+    }
+
+    public int getGlobals() {
+        return this.globals;
+    }
+
+    public void defineProcedure(String id, int offset) {
+        // Record the name of the procedure at the given offset.
+        this.procedureNames.put(offset, id);
+    }
+
+    public void setCaching(boolean caching) {
+        // Enable or disable caching of the stack top while
+        // interpreting (not when tracing).
+        this.caching = caching;
+    }
+
+    public void setFusing(boolean fusing) {
+        // Enable or disable superinstructions in the decoded code.
+        this.fusing = fusing;
+        this.decoded = null;
+    }
+
     public int currentOffset() {
         // Return the offset of the next instruction to be added.
         return this.cl;
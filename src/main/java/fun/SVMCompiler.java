@@ -0,0 +1,477 @@
+package fun;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fun.ClassAssembler.*;
+
+/**
+ * A compiler from the SVM code of one procedure to JVM bytecode.
+ * The code is translated, instruction by instruction, into the
+ * static method
+ *
+ * static int run(SVMContext vm, int[] data, int fp, int sp, int osr)
+ *
+ * of a hidden class, which keeps the SVM registers fp and sp in
+ * JVM locals and returns sp when the procedure returns. HotSpot
+ * can then compile the procedure like any other Java method.
+ * The method starts at the procedure's entry if osr is -1, or
+ * otherwise at the loop instruction at offset osr, so that an
+ * interpreted activation can continue in compiled code.
+ */
+public class SVMCompiler {
+
+    private static final MethodType RUN_TYPE =
+            MethodType.methodType(int.class, SVMContext.class, int[].class, int.class, int.class, int.class);
+    private static final String
+            SVM_CLASS = "fun/SVM",
+            CONTEXT_CLASS = "fun/SVMContext",
+            CODE_CLASS = "fun/SVMCode",
+            RUN_DESCRIPTOR = "(Lfun/SVMContext;[IIII)I";
+
+    // JVM locals of the run method.
+    private static final int MAX_KEYS = 1024;     // most keys in a lookupswitch
+
+    private static final int VM = 0, DATA = 1, FP = 2, SP = 3, OSR = 4, T1 = 5, T2 = 6;
+
+    private final byte[] code;
+    private final int entry, end;
+    private final int[] osr;
+    private final ClassAssembler asm = new ClassAssembler(CODE_CLASS);
+    private final int[] labels;
+
+    private SVMCompiler(byte[] code, int entry, int end, int[] osr) {
+        this.code = code;
+        this.entry = entry;
+        this.end = end;
+        this.osr = osr;
+        this.labels = new int[end - entry + 1];
+    }
+
+    public static MethodHandle compile(byte[] code, int entry, int end, int[] osr) {
+        // Compile the procedure occupying code[entry..end-1],
+        // with on-stack replacement entries at the (sorted)
+        // offsets osr. Return a handle to its run method, or
+        // null if the code cannot be translated.
+        try {
+            SVMCompiler compiler = new SVMCompiler(code, entry, end, osr);
+            if (!compiler.translate()) return null;
+            byte[] bytes = compiler.asm.toByteArray();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.findStatic(lookup.lookupClass(), "run", RUN_TYPE);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError x) {
+            return null;
+        }
+    }
+
+    private int operand(int c) {
+        // Return the 2-byte operand of the instruction at c.
+        return this.code[c + 1] << 8 | (this.code[c + 2] & 0xFF);
+    }
+
+    private int label(int c) {
+        // Return the label of the instruction at offset c,
+        // or -1 if c lies outside this procedure.
+        if (c < this.entry || c > this.end) return -1;
+        if (this.labels[c - this.entry] == 0) this.labels[c - this.entry] = this.asm.newLabel() + 1;
+        return this.labels[c - this.entry] - 1;
+    }
+
+    private boolean translate() {
+        // Translate the procedure's code into the run method.
+        // Return false if any instruction cannot be translated.
+        this.asm.setFrameLocals(CONTEXT_CLASS, "[I", "I", "I", "I", "I", "I");
+        this.asm.op(ICONST_0);
+        this.asm.op1(ISTORE, T1);
+        this.asm.op(ICONST_0);
+        this.asm.op1(ISTORE, T2);
+        if (this.osr.length > 0) {
+            int[] targets = new int[this.osr.length];
+            for (int i = 0; i < this.osr.length; i++) {
+                targets[i] = this.label(this.osr[i]);
+                if (targets[i] < 0) return false;
+            }
+            this.asm.op1(ILOAD, OSR);
+            this.asm.switchLookup(this.osr, targets, this.label(this.entry));
+        }
+
+        // Mark every jump target, so each gets a stack map frame.
+        for (int c = this.entry; c < this.end; c += SVM.BYTES[this.code[c]]) {
+            byte opcode = this.code[c];
+            if (SVM.isJump(opcode))
+                if (this.label(this.operand(c)) < 0) return false;
+            if (opcode == SVM.TCALL && this.operand(c) == this.entry) this.label(this.body());
+        }
+
+        boolean reachable = true;
+        for (int c = this.entry; c < this.end; ) {
+            byte opcode = this.code[c];
+            int next = c + SVM.BYTES[opcode];
+            int operand = (SVM.BYTES[opcode] == 3 ? this.operand(c) : 0);
+            if (this.labels[c - this.entry] != 0 || !reachable) this.asm.bind(this.label(c));
+            reachable = true;
+            switch (opcode) {
+                case SVM.LOADG -> this.load(() -> this.asm.pushInt(operand));
+                case SVM.LOADL -> this.load(() -> this.local(operand));
+                case SVM.LOADC -> {
+                    this.slot(0);
+                    this.asm.pushInt(operand);
+                    this.asm.op(IASTORE);
+                    this.asm.iinc(SP, 1);
+                }
+                case SVM.STOREG -> this.store(() -> this.asm.pushInt(operand));
+                case SVM.STOREL -> this.store(() -> this.local(operand));
+                case SVM.TEEG -> this.tee(() -> this.asm.pushInt(operand));
+                case SVM.TEEL -> this.tee(() -> this.local(operand));
+                case SVM.ADD -> this.binary(IADD);
+                case SVM.SUB -> this.binary(ISUB);
+                case SVM.MUL -> this.binary(IMUL);
+                case SVM.DIV -> this.binary(IDIV);
+                case SVM.CMPEQ, SVM.CMPLT, SVM.CMPGT -> {
+                    byte jump = (next < this.end ? this.code[next] : -1);
+                    boolean fused = (jump == SVM.JUMPF || jump == SVM.JUMPT) && this.labels[next - this.entry] == 0;
+                    if (fused) {
+                        // Compare and branch without materialising the boolean.
+                        this.asm.iinc(SP, -2);
+                        this.slot(0);
+                        this.asm.op(IALOAD);
+                        this.slot(1);
+                        this.asm.op(IALOAD);
+                        this.asm.branch(branchOpcode(opcode, jump == SVM.JUMPT), this.label(this.operand(next)));
+                        next += 3;
+                    } else {
+                        this.compare(opcode);
+                    }
+                }
+                case SVM.INV -> {
+                    // w == 0 ? 1 : 0 computed as ((w | -w) >>> 31) ^ 1
+                    this.slot(-1);
+                    this.asm.op(DUP2);
+                    this.asm.op(IALOAD);
+                    this.asm.op(DUP);
+                    this.asm.op(ICONST_0);
+                    this.asm.op(SWAP);
+                    this.asm.op(ISUB);
+                    this.asm.op(IOR);
+                    this.asm.pushInt(31);
+                    this.asm.op(IUSHR);
+                    this.asm.op(ICONST_1);
+                    this.asm.op(IXOR);
+                    this.asm.op(IASTORE);
+                }
+                case SVM.INC -> {
+                    this.slot(-1);
+                    this.asm.op(DUP2);
+                    this.asm.op(IALOAD);
+                    this.asm.op(ICONST_1);
+                    this.asm.op(IADD);
+                    this.asm.op(IASTORE);
+                }
+                case SVM.JUMP -> {
+                    this.asm.branch(GOTO, this.label(operand));
+                    reachable = false;
+                }
+                case SVM.JUMPF, SVM.JUMPT -> {
+                    this.asm.iinc(SP, -1);
+                    this.slot(0);
+                    this.asm.op(IALOAD);
+                    this.asm.branch(opcode == SVM.JUMPF ? IFEQ : IFNE, this.label(operand));
+                }
+                case SVM.TABLE, SVM.LOOKUP -> {
+                    // The following JUMPs (and RANGEs) are the table.
+                    int n = (opcode == SVM.TABLE ? this.operand(c + 2) : operand);
+                    next += 3 * (n + 1) + (opcode == SVM.LOOKUP ? 5 * n : 0);
+                    if (!this.tableSwitch(c, n)) return false;
+                    reachable = false;
+                }
+                case SVM.JUMPLT, SVM.JUMPGE, SVM.JUMPGT, SVM.JUMPLE, SVM.JUMPEQ, SVM.JUMPNE -> {
+                    this.asm.iinc(SP, -2);
+                    this.slot(0);
+                    this.asm.op(IALOAD);
+                    this.slot(1);
+                    this.asm.op(IALOAD);
+                    int[] branches = {IF_ICMPLT, IF_ICMPGE, IF_ICMPGT, IF_ICMPLE, IF_ICMPEQ, IF_ICMPNE};
+                    this.asm.branch(branches[opcode - SVM.JUMPLT], this.label(operand));
+                }
+                case SVM.POP -> {
+                    if (operand < 0 || operand > 127) return false;
+                    this.asm.iinc(SP, -operand);
+                }
+                case SVM.CALL -> this.call(operand);
+                case SVM.TCALL -> {
+                    this.tailCall(operand);
+                    reachable = false;
+                }
+                case SVM.RETURN -> {
+                    int r = this.code[c + 1];
+                    if (r < 0 || r > 1) return false;
+                    if (r == 1) {
+                        // data[fp] = data[sp - 1]
+                        this.asm.op1(ALOAD, DATA);
+                        this.asm.op1(ILOAD, FP);
+                        this.slot(-1);
+                        this.asm.op(IALOAD);
+                        this.asm.op(IASTORE);
+                    }
+                    this.asm.op1(ILOAD, FP);
+                    this.asm.pushInt(r);
+                    this.asm.op(IADD);
+                    this.asm.op(IRETURN);
+                    reachable = false;
+                }
+                case SVM.COPYARG -> {
+                    int s = this.code[c + 1];
+                    if (s < 0 || s > 100) return false;
+                    this.frameWord(0);
+                    this.asm.op1(ISTORE, T1);
+                    this.frameWord(1);
+                    this.asm.op1(ISTORE, T2);
+                    for (int i = 0; i < s; i++) {
+                        // data[fp - i + 1] = data[fp - i - 1]
+                        this.asm.op1(ALOAD, DATA);
+                        this.local(1 - i);
+                        this.frameWord(-i - 1);
+                        this.asm.op(IASTORE);
+                    }
+                    this.asm.iinc(FP, -s);
+                    this.asm.op1(ALOAD, DATA);
+                    this.local(0);
+                    this.asm.op1(ILOAD, T1);
+                    this.asm.op(IASTORE);
+                    this.asm.op1(ALOAD, DATA);
+                    this.local(1);
+                    this.asm.op1(ILOAD, T2);
+                    this.asm.op(IASTORE);
+                }
+                default -> {
+                    return false;
+                }
+            }
+            c = next;
+        }
+        // A jump may target the end of the procedure, beyond its RETURN.
+        if (this.labels[this.end - this.entry] != 0 || reachable) {
+            this.asm.bind(this.label(this.end));
+            this.asm.op1(ILOAD, SP);
+            this.asm.op(IRETURN);
+        }
+        this.asm.endMethod("run", RUN_DESCRIPTOR, 8, 7);
+        return true;
+    }
+
+    private static int branchOpcode(byte compare, boolean jumpIfTrue) {
+        // Return the if_icmp instruction for compare; JUMPT/JUMPF.
+        return switch (compare) {
+            case SVM.CMPLT -> jumpIfTrue ? IF_ICMPLT : IF_ICMPGE;
+            case SVM.CMPGT -> jumpIfTrue ? IF_ICMPGT : IF_ICMPLE;
+            default -> jumpIfTrue ? IF_ICMPEQ : IF_ICMPNE;
+        };
+    }
+
+    private void local(int d) {
+        // Push fp + d.
+        this.asm.op1(ILOAD, FP);
+        if (d != 0) {
+            this.asm.pushInt(d);
+            this.asm.op(IADD);
+        }
+    }
+
+    private void frameWord(int d) {
+        // Push data[fp + d].
+        this.asm.op1(ALOAD, DATA);
+        this.local(d);
+        this.asm.op(IALOAD);
+    }
+
+    private int body() {
+        // Return the offset of this procedure's first instruction
+        // after its COPYARG, if it has one.
+        return (this.code[this.entry] == SVM.COPYARG ? this.entry + 2 : this.entry);
+    }
+
+    private void tailCall(int c) {
+        // Translate TCALL c. A tail call of this procedure moves
+        // the arguments into the frame and jumps back to the body;
+        // any other goes through SVM.tailInvoke, whose result is
+        // returned as this procedure's own.
+        if (c == this.entry) {
+            int s = (this.body() > this.entry ? this.code[this.entry + 1] : 0);
+            for (int i = 0; i < s; i++) {
+                // data[fp + 2 + i] = data[sp - s + i]
+                this.asm.op1(ALOAD, DATA);
+                this.local(2 + i);
+                this.slot(i - s);
+                this.asm.op(IALOAD);
+                this.asm.op(IASTORE);
+            }
+            this.asm.op1(ILOAD, FP);
+            this.asm.pushInt(2 + s);
+            this.asm.op(IADD);
+            this.asm.op1(ISTORE, SP);
+            this.asm.branch(GOTO, this.label(this.body()));
+            return;
+        }
+        this.asm.op1(ALOAD, VM);
+        this.asm.pushInt(c);
+        this.asm.op1(ILOAD, FP);
+        this.asm.op1(ILOAD, SP);
+        this.asm.op2(INVOKESTATIC, this.asm.methodRef(SVM_CLASS, "tailInvoke", "(Lfun/SVMContext;III)I"));
+        this.asm.op(IRETURN);
+    }
+
+    private boolean tableSwitch(int c, int n) {
+        // Translate the TABLE or LOOKUP at c, with n entries, to
+        // a tableswitch or lookupswitch on the popped value.
+        // Ranges are expanded to single keys, so give up if
+        // there would be too many.
+        int jumps = c + SVM.BYTES[this.code[c]];
+        int defaultLabel = this.label(this.operand(jumps));
+        List<Integer> keys = new ArrayList<>();
+        List<Integer> targets = new ArrayList<>();
+        if (this.code[c] == SVM.TABLE) {
+            for (int i = 0; i < n; i++) {
+                keys.add(this.operand(c) + i);
+                targets.add(this.label(this.operand(jumps + 3 * (i + 1))));
+            }
+        } else {
+            for (int i = 0, r = jumps + 3; i < n; i++, r += 8) {
+                int lo = this.operand(r), hi = this.operand(r + 2);
+                if (keys.size() + hi - lo + 1 > MAX_KEYS) return false;
+                for (int key = lo; key <= hi; key++) {
+                    keys.add(key);
+                    targets.add(this.label(this.operand(r + 5)));
+                }
+            }
+        }
+        if (defaultLabel < 0 || targets.contains(-1)) return false;
+
+        this.asm.iinc(SP, -1);
+        this.slot(0);
+        this.asm.op(IALOAD);
+        int[] labels = targets.stream().mapToInt(Integer::intValue).toArray();
+        if (this.code[c] == SVM.TABLE && n > 0)
+            this.asm.switchTable(keys.get(0), labels, defaultLabel);
+        else
+            this.asm.switchLookup(keys.stream().mapToInt(Integer::intValue).toArray(), labels, defaultLabel);
+        return true;
+    }
+
+    private void slot(int d) {
+        // Push data and the index sp + d.
+        this.asm.op1(ALOAD, DATA);
+        this.asm.op1(ILOAD, SP);
+        if (d != 0) {
+            this.asm.pushInt(d);
+            this.asm.op(IADD);
+        }
+    }
+
+    private void load(Runnable address) {
+        // data[sp++] = data[address]
+        this.slot(0);
+        this.asm.op1(ALOAD, DATA);
+        address.run();
+        this.asm.op(IALOAD);
+        this.asm.op(IASTORE);
+        this.asm.iinc(SP, 1);
+    }
+
+    private void store(Runnable address) {
+        // data[address] = data[--sp]
+        this.asm.iinc(SP, -1);
+        this.asm.op1(ALOAD, DATA);
+        address.run();
+        this.slot(0);
+        this.asm.op(IALOAD);
+        this.asm.op(IASTORE);
+    }
+
+    private void tee(Runnable address) {
+        // data[address] = data[sp - 1]
+        this.asm.op1(ALOAD, DATA);
+        address.run();
+        this.slot(-1);
+        this.asm.op(IALOAD);
+        this.asm.op(IASTORE);
+    }
+
+    private void binary(int jvmOpcode) {
+        // sp--; data[sp - 1] = data[sp - 1] op data[sp]
+        this.asm.iinc(SP, -1);
+        this.slot(-1);
+        this.asm.op(DUP2);
+        this.asm.op(IALOAD);
+        this.slot(0);
+        this.asm.op(IALOAD);
+        this.asm.op(jvmOpcode);
+        this.asm.op(IASTORE);
+    }
+
+    private void compare(byte opcode) {
+        // sp--; data[sp - 1] = (data[sp - 1] cmp data[sp] ? 1 : 0),
+        // computed without branches from Integer.compare.
+        this.asm.iinc(SP, -1);
+        this.slot(-1);
+        this.asm.op(DUP2);
+        this.asm.op(IALOAD);
+        this.slot(0);
+        this.asm.op(IALOAD);
+        if (opcode == SVM.CMPGT) this.asm.op(SWAP);
+        this.asm.op2(INVOKESTATIC, this.asm.methodRef("java/lang/Integer", "compare", "(II)I"));
+        if (opcode == SVM.CMPEQ) {
+            // compare is -1, 0 or 1, so (compare & 1) ^ 1 is w1 == w2
+            this.asm.op(ICONST_1);
+            this.asm.op(IAND);
+            this.asm.op(ICONST_1);
+            this.asm.op(IXOR);
+        } else {
+            this.asm.pushInt(31);
+            this.asm.op(IUSHR);
+        }
+        this.asm.op(IASTORE);
+    }
+
+    private void call(int c) {
+        // Translate CALL c.
+        if (c >= SVM.IO_BASE) {
+            // sp = vm.callIO(c, sp)
+            this.asm.op1(ALOAD, VM);
+            this.asm.pushInt(c);
+            this.asm.op1(ILOAD, SP);
+            this.asm.op2(INVOKEVIRTUAL, this.asm.methodRef(CONTEXT_CLASS, "callIO", "(II)I"));
+            this.asm.op1(ISTORE, SP);
+            return;
+        }
+        // Push the dynamic link and RETURN_TO_CALLER, then run the
+        // callee with its frame at sp: directly if it is this
+        // procedure, otherwise through SVM.invoke.
+        this.slot(0);
+        this.asm.op1(ILOAD, FP);
+        this.asm.op(IASTORE);
+        this.slot(1);
+        this.asm.pushInt(SVM.RETURN_TO_CALLER);
+        this.asm.op(IASTORE);
+        this.asm.op1(ALOAD, VM);
+        if (c == this.entry) {
+            this.asm.op1(ALOAD, DATA);
+        } else {
+            this.asm.pushInt(c);
+        }
+        this.asm.op1(ILOAD, SP);
+        this.asm.op1(ILOAD, SP);
+        this.asm.pushInt(2);
+        this.asm.op(IADD);
+        if (c == this.entry) {
+            this.asm.pushInt(-1);
+            this.asm.op2(INVOKESTATIC, this.asm.methodRef(CODE_CLASS, "run", RUN_DESCRIPTOR));
+        } else {
+            this.asm.op2(INVOKESTATIC, this.asm.methodRef(SVM_CLASS, "invoke", "(Lfun/SVMContext;III)I"));
+        }
+        this.asm.op1(ISTORE, SP);
+    }
+
+}
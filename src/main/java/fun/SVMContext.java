@@ -0,0 +1,86 @@
+package fun;
+
+import java.util.Arrays;
+
+/**
+ * The execution state of one run of an SVM program: its data
+ * store, registers and execution counts. The SVM itself holds
+ * only the program, which many contexts may run at once, one
+ * per thread. Contexts are reused between runs, so the data
+ * store is allocated once per context rather than per run.
+ */
+public class SVMContext {
+
+    final SVM program;
+    final int[] data = new int[SVM.DATA_SIZE];  // data store (stack)
+    int pc;                     // program counter
+    int sp;                     // stack pointer
+    int fp;                     // frame pointer
+    byte status;
+    FunIO io;                   // channels of read and write
+    boolean slicing;            // run in slices by SVM.resume
+    int budget;                 // calls and loop iterations left in the slice
+    long[] fusedHits;           // superinstructions executed
+    int[] callCounts;           // calls of the procedure at each word
+    int[] loopCounts;           // iterations of the loop at each word
+
+    SVMContext(SVM program) {
+        this.program = program;
+    }
+
+    void reset(int words, int fused, FunIO io) {
+        // Clear the counts of the previous run, keeping the
+        // arrays if they are the right size, and take the IO
+        // channels of the next.
+        this.io = io;
+        if (this.callCounts == null || this.callCounts.length != words) {
+            this.callCounts = new int[words];
+            this.loopCounts = new int[words];
+        } else {
+            Arrays.fill(this.callCounts, 0);
+            Arrays.fill(this.loopCounts, 0);
+        }
+        if (this.fusedHits == null || this.fusedHits.length != fused) this.fusedHits = new long[fused];
+        else Arrays.fill(this.fusedHits, 0);
+        this.pc = this.sp = this.fp = 0;
+        this.slicing = false;
+        this.status = SVM.RUNNING;
+    }
+
+    int callIO(int c, int sp) {
+        // Execute a call to an IO routine, with the given
+        // stack pointer. Return the new stack pointer.
+        switch (c) {
+            case SVM.READ_OFF_SET -> {
+                int w = this.io.read();
+                this.data[sp++] = w;
+            }
+            case SVM.WRITE_OFF_SET -> {
+                int w = this.data[--sp];
+                this.io.write(w);
+            }
+        }
+        return sp;
+    }
+
+    public byte getStatus() {
+        return this.status;
+    }
+
+    // STACK DISPLAY
+    public String showStack() {
+        // Return a textual representation of the stack contents.
+        StringBuilder show = new StringBuilder();
+        int dl = this.fp;
+        for (int a = this.sp - 1; a >= 0; a--) {
+            show.append(String.format("%6d: %6d\n", a, this.data[a]));
+
+            if (a == dl) {
+                show.append("        ------\n");
+                dl = this.data[a];
+            }
+        }
+        return show.toString();
+    }
+
+}
@@ -0,0 +1,135 @@
+package fun;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writer and loader of SVM object files (.svm), which hold a
+ * compiled program, so that it can be run without compiling
+ * its source again. The loader maps the file into memory.
+ * <p>
+ * The layout, with all numbers big-endian, is:
+ *
+ * <pre>
+ *   magic      4 bytes   "FSVM"
+ *   version    2 bytes   VERSION
+ *   flags      2 bytes   DEBUG if the debug section is present
+ *   cl         4 bytes   code limit
+ *   globals    4 bytes   number of global variables
+ *   entries    4 bytes   number of procedure entries, then
+ *              4 bytes   the offset of each, ascending
+ *   code       cl bytes  the code store up to cl
+ *   debug      4 bytes   number of procedure names, then for each
+ *              4 bytes   its offset, and
+ *              2 bytes   the length of its UTF-8 name, then the name
+ * </pre>
+ */
+public class SVMObjectFile {
+
+    private static final int MAGIC = 'F' << 24 | 'S' << 16 | 'V' << 8 | 'M';
+    public static final short VERSION = 1;
+    public static final short DEBUG = 1;    // flags
+
+    public static void write(SVM program, Path file, boolean debug) throws IOException {
+        // Write the program to the file, with the names of its
+        // procedures if debug is true.
+        int[] entries = program.procedureEntries();
+        Map<Integer, String> names = program.procedureNames;
+        int size = 20 + 4 * entries.length + program.cl;
+        if (debug) {
+            size += 4;
+            for (String name : names.values()) size += 6 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.putShort(debug ? DEBUG : 0);
+        buf.putInt(program.cl);
+        buf.putInt(program.globals);
+        buf.putInt(entries.length);
+        for (int entry : entries) buf.putInt(entry);
+        buf.put(program.code, 0, program.cl);
+        if (debug) {
+            buf.putInt(names.size());
+            for (Map.Entry<Integer, String> e : names.entrySet()) {
+                byte[] name = e.getValue().getBytes(StandardCharsets.UTF_8);
+                buf.putInt(e.getKey());
+                buf.putShort((short) name.length);
+                buf.put(name);
+            }
+        }
+        buf.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    public static SVM load(Path file) throws IOException {
+        // Map the file into memory and return the program it
+        // holds. Throw IOException if it is not an SVM object
+        // file of this version, or is corrupt.
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC) throw new IOException("not an SVM object file: " + file);
+            short version = buf.getShort();
+            if (version != VERSION) throw new IOException("unsupported SVM object file version " + version);
+            short flags = buf.getShort();
+
+            SVM program = new SVM();
+            int cl = buf.getInt();
+            if (cl < 0 || cl > program.code.length) throw new IOException("corrupt SVM object file: code limit " + cl);
+            program.setGlobals(buf.getInt());
+            int[] entries = new int[buf.getInt()];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = buf.getInt();
+                if (entries[i] < 0 || entries[i] >= cl || (i > 0 && entries[i] <= entries[i - 1]))
+                    throw new IOException("corrupt SVM object file: procedure entry " + entries[i]);
+            }
+            buf.get(program.code, 0, cl);
+            program.cl = cl;
+            program.entryTable = entries;
+            if ((flags & DEBUG) != 0) {
+                int count = buf.getInt();
+                for (int i = 0; i < count; i++) {
+                    int offset = buf.getInt();
+                    byte[] name = new byte[buf.getShort()];
+                    buf.get(name);
+                    program.defineProcedure(new String(name, StandardCharsets.UTF_8), offset);
+                }
+            }
+            checkCode(program);
+            return program;
+        } catch (BufferUnderflowException | NegativeArraySizeException x) {
+            throw new IOException("corrupt SVM object file: truncated", x);
+        }
+    }
+
+    private static void checkCode(SVM program) throws IOException {
+        // Check that every instruction has a valid opcode and
+        // lies within the code limit, and that the entry table
+        // is that of the code.
+        int c = 0;
+        while (c < program.cl) {
+            byte opcode = program.code[c];
+            if (opcode < 0 || opcode >= SVM.BYTES.length)
+                throw new IOException("corrupt SVM object file: opcode " + opcode + " at " + c);
+            c += SVM.BYTES[opcode];
+        }
+        if (c != program.cl || !Arrays.equals(program.entryTable, program.procedureEntries()))
+            throw new IOException("corrupt SVM object file: code does not match its entries");
+    }
+
+}
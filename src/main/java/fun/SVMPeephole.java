@@ -0,0 +1,213 @@
+package fun;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A peephole optimiser for the code store of an SVM. It rewrites
+ * wasteful sequences left by the encoder and then reassembles the
+ * code, relocating every jump and call target (and the recorded
+ * procedure offsets) to the instructions' new offsets:
+ *
+ *  JUMP c, where c holds JUMP c'         JUMP c'  (likewise conditional jumps)
+ *  JUMPF c; JUMP c'; c:                  JUMPT c'  (likewise JUMPT, JUMPcc)
+ *  STOREL d; LOADL d                     TEEL d   (likewise STOREG/LOADG)
+ *  INV; JUMPF c                          JUMPT c  (likewise INV; JUMPT)
+ *  JUMP c; c:                            (nothing)
+ *  JUMP, RETURN, TCALL or HALT;         JUMP, RETURN, TCALL or HALT
+ *    unreachable
+ *
+ * No sequence is rewritten if a jump enters it after its first
+ * instruction, and the JUMP and RANGE instructions forming the
+ * data of a TABLE or LOOKUP are never moved or removed (though
+ * their targets may be threaded).
+ */
+public class SVMPeephole {
+
+    private final SVM vm;
+    private final int n;            // number of instructions
+    private final byte[] ops;
+    private final int[] args;       // operand (an instruction index if a target)
+    private final int[] args2;      // second operand of a 5-byte instruction
+    private final boolean[] data;   // part of the data of a TABLE or LOOKUP
+    private final boolean[] deleted;
+    private final boolean[] target; // entered by a jump or call
+    private final int[] indexOf;    // instruction at each original offset
+    private int rewrites = 0;
+
+    public SVMPeephole(SVM vm) {
+        // Prepare to optimise the code store of vm.
+        this.vm = vm;
+        int count = 0;
+        for (int c = 0; c < vm.cl; c += SVM.BYTES[vm.code[c]]) count++;
+        this.n = count;
+        this.ops = new byte[count];
+        this.args = new int[count];
+        this.args2 = new int[count];
+        this.data = new boolean[count];
+        this.deleted = new boolean[count];
+        this.target = new boolean[count + 1];
+
+        // Split the code into instructions, then convert each
+        // target offset to the index of its instruction.
+        int[] indexOf = this.indexOf = new int[vm.cl + 1];
+        int plain = 0;
+        for (int c = 0, i = 0; c < vm.cl; c += SVM.BYTES[vm.code[c]], i++) {
+            byte opcode = vm.code[c];
+            indexOf[c] = i;
+            this.ops[i] = opcode;
+            this.args[i] = switch (SVM.BYTES[opcode]) {
+                case 2 -> vm.code[c + 1];
+                case 3, 5 -> vm.code[c + 1] << 8 | (vm.code[c + 2] & 0xFF);
+                default -> 0;
+            };
+            if (SVM.BYTES[opcode] == 5) this.args2[i] = vm.code[c + 3] << 8 | (vm.code[c + 4] & 0xFF);
+            if (plain > 0) {
+                this.data[i] = true;
+                plain--;
+            } else if (opcode == SVM.TABLE) {
+                plain = this.args2[i] + 1;
+            } else if (opcode == SVM.LOOKUP) {
+                plain = 2 * this.args[i] + 1;
+            }
+        }
+        indexOf[vm.cl] = count;
+        for (int i = 0; i < count; i++)
+            if (SVM.isTransfer(this.ops[i], this.args[i])) this.args[i] = indexOf[this.args[i]];
+        this.target[0] = true;
+        for (int offset : vm.procedureNames.keySet()) this.target[indexOf[offset]] = true;
+    }
+
+    public String optimise() {
+        // Rewrite the code until no pattern applies, then
+        // reassemble it. Return a report of the code size.
+        int before = this.vm.cl;
+        boolean changed;
+        do {
+            this.findTargets();
+            changed = false;
+            for (int i = 0; i < this.n; i++)
+                if (!this.deleted[i] && this.rewrite(i)) changed = true;
+        } while (changed);
+        this.reassemble();
+        return String.format("%d rewrites, code size %d -> %d bytes", this.rewrites, before, this.vm.cl);
+    }
+
+    private void findTargets() {
+        // Mark every instruction entered by a jump or call,
+        // besides offset 0 and the procedure entries.
+        for (int i = 0; i < this.n; i++)
+            if (!this.deleted[i] && SVM.isTransfer(this.ops[i], this.args[i])) this.target[this.args[i]] = true;
+    }
+
+    private int next(int i) {
+        // Return the first instruction after i not deleted,
+        // or n if there is none.
+        do i++; while (i < this.n && this.deleted[i]);
+        return i;
+    }
+
+    private int follow(int i) {
+        // Return the instruction that execution reaches from
+        // instruction i (or n) through any deleted instructions
+        // and unconditional jumps.
+        for (int hops = 0; hops < this.n; hops++) {
+            if (i < this.n && this.deleted[i]) i = this.next(i);
+            else if (i < this.n && this.ops[i] == SVM.JUMP && this.args[i] != i) i = this.args[i];
+            else break;
+        }
+        return i;
+    }
+
+    private void delete(int i) {
+        // Delete instruction i; any jump to it now enters the
+        // instruction after it.
+        this.deleted[i] = true;
+        if (this.target[i]) this.target[this.next(i)] = true;
+        this.rewrites++;
+    }
+
+    private boolean rewrite(int i) {
+        // Apply the first pattern that matches at instruction i.
+        // Return true iff the code was changed.
+        byte op = this.ops[i];
+        int j = this.next(i);
+        boolean joined = (j < this.n && !this.target[j] && !this.data[j]);
+
+        if (SVM.isJump(op)) {
+            int t = this.follow(this.args[i]);
+            if (op == SVM.JUMP && !this.data[i] && t == this.follow(j) && t != i) {
+                this.delete(i);
+                return true;
+            }
+            if (op != SVM.JUMP && joined && this.ops[j] == SVM.JUMP && this.follow(this.next(j)) == t) {
+                // Branch around an unconditional jump.
+                this.ops[i] = SVM.negation(op);
+                this.args[i] = this.args[j];
+                this.target[this.args[i]] = true;
+                this.delete(j);
+                return true;
+            }
+            if (t != this.args[i] && t != i && (t == this.n || this.ops[t] != SVM.JUMP)) {
+                this.args[i] = t;
+                this.target[t] = true;
+                this.rewrites++;
+                return true;
+            }
+        }
+        if ((op == SVM.STOREL || op == SVM.STOREG) && joined
+                && this.ops[j] == (op == SVM.STOREL ? SVM.LOADL : SVM.LOADG) && this.args[j] == this.args[i]) {
+            this.ops[i] = (op == SVM.STOREL ? SVM.TEEL : SVM.TEEG);
+            this.delete(j);
+            return true;
+        }
+        if (op == SVM.INV && joined && (this.ops[j] == SVM.JUMPF || this.ops[j] == SVM.JUMPT)) {
+            // A jump to the INV now enters the flipped jump,
+            // which tests the same condition.
+            this.ops[j] = SVM.negation(this.ops[j]);
+            this.delete(i);
+            return true;
+        }
+        if ((op == SVM.JUMP && !this.data[i]) || op == SVM.RETURN || op == SVM.TCALL || op == SVM.HALT) {
+            // Remove the unreachable code up to the next target.
+            boolean removed = false;
+            for (; j < this.n && !this.target[j] && !this.data[j]
+                    && this.ops[j] != SVM.TABLE && this.ops[j] != SVM.LOOKUP; j = this.next(j)) {
+                this.delete(j);
+                removed = true;
+            }
+            return removed;
+        }
+        return false;
+    }
+
+    private void reassemble() {
+        // Write the remaining instructions back to the code
+        // store at their new offsets, relocating targets.
+        int[] offset = new int[this.n + 1];
+        int c = 0;
+        for (int i = 0; i < this.n; i++) {
+            offset[i] = c;
+            if (!this.deleted[i]) c += SVM.BYTES[this.ops[i]];
+        }
+        offset[this.n] = c;
+
+        Map<Integer, String> names = new TreeMap<>(this.vm.procedureNames);
+        this.vm.procedureNames.clear();
+        names.forEach((at, id) -> this.vm.procedureNames.put(offset[this.indexOf[at]], id));
+
+        this.vm.cl = 0;
+        for (int i = 0; i < this.n; i++) {
+            if (this.deleted[i]) continue;
+            byte op = this.ops[i];
+            int operand = (SVM.isTransfer(op, this.args[i]) ? offset[this.args[i]] : this.args[i]);
+            switch (SVM.BYTES[op]) {
+                case 1 -> this.vm.emit1(op);
+                case 2 -> this.vm.emit11(op, operand);
+                case 3 -> this.vm.emit12(op, operand);
+                default -> this.vm.emit122(op, operand, this.args2[i]);
+            }
+        }
+    }
+
+}
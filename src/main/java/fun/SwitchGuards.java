@@ -0,0 +1,99 @@
+package fun;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * The guards of the cases of one switch command, as found by
+ * contextual analysis. Case i matches every value from low[i]
+ * to high[i] inclusive, where a bool literal stands for 0 or 1;
+ * a case whose range is empty has low[i] > high[i].
+ */
+public class SwitchGuards {
+
+    public final int[] low;
+    public final int[] high;
+
+    public SwitchGuards(int cases) {
+        this.low = new int[cases];
+        this.high = new int[cases];
+    }
+
+    public int size() {
+        // Return the number of cases.
+        return this.low.length;
+    }
+
+    public boolean isEmpty(int i) {
+        // Return true iff case i matches no value.
+        return this.low[i] > this.high[i];
+    }
+
+    public int min() {
+        // Return the least value matched by any case.
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < this.size(); i++)
+            if (!this.isEmpty(i)) min = Math.min(min, this.low[i]);
+        return min;
+    }
+
+    public int max() {
+        // Return the greatest value matched by any case.
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < this.size(); i++)
+            if (!this.isEmpty(i)) max = Math.max(max, this.high[i]);
+        return max;
+    }
+
+    public int[] order() {
+        // Return the indices of the non-empty cases, ordered
+        // by their lowest values.
+        return IntStream.range(0, this.size()).filter(i -> !this.isEmpty(i))
+                .boxed().sorted((i, j) -> Integer.compare(this.low[i], this.low[j]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    public boolean[] overlapping() {
+        // Return, for each case, whether it matches a value also
+        // matched by an earlier case. The values matched so far
+        // are kept as disjoint intervals, keyed by their lowest
+        // values, so this takes O(n log n) time for n cases.
+        boolean[] overlapping = new boolean[this.size()];
+        TreeMap<Integer, Integer> matched = new TreeMap<>();
+        for (int i = 0; i < this.size(); i++) {
+            if (this.isEmpty(i)) continue;
+            int lo = this.low[i], hi = this.high[i];
+            Map.Entry<Integer, Integer> before = matched.floorEntry(hi);
+            overlapping[i] = (before != null && before.getValue() >= lo);
+
+            // Merge the case's interval with those it overlaps or adjoins.
+            Map.Entry<Integer, Integer> left = matched.floorEntry(lo);
+            if (left != null && (long) left.getValue() + 1 >= lo) {
+                lo = left.getKey();
+                hi = Math.max(hi, left.getValue());
+            }
+            Map.Entry<Integer, Integer> right;
+            while ((right = matched.ceilingEntry(lo)) != null && (long) right.getKey() - 1 <= hi) {
+                hi = Math.max(hi, right.getValue());
+                matched.remove(right.getKey());
+            }
+            matched.put(lo, hi);
+        }
+        return overlapping;
+    }
+
+    public String toString(int i) {
+        // Return the guard of case i as written.
+        return (this.low[i] == this.high[i] ? String.valueOf(this.low[i]) : this.low[i] + ".." + this.high[i]);
+    }
+
+    public long covered() {
+        // Return the number of values matched by some case.
+        long covered = 0;
+        for (int i = 0; i < this.size(); i++)
+            if (!this.isEmpty(i)) covered += (long) this.high[i] - this.low[i] + 1;
+        return covered;
+    }
+
+}